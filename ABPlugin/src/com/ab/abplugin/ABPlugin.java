@@ -6,22 +6,42 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 import anywheresoftware.b4a.BA;
 import anywheresoftware.b4a.BA.Author;
@@ -34,27 +54,76 @@ import anywheresoftware.b4a.BA.Version;
 @Version(1.00F)
 @Author("Alain Bailleul")
 @ShortName("ABPlugin")
-@Events(values={"PluginsChanged()"})
+@Events(values={"PluginsChanged()", "PluginsUpdated(Changes As List)", "PluginCompleted(TaskId As Int, NiceName As String, Success As Boolean, Result As Object)"})
 public class ABPlugin {
 	protected BA _ba;
 	protected String _event;
 	private String pluginsDir;
-	private Map<String, ABPluginDefinition> plugins = new LinkedHashMap<String, ABPluginDefinition>();
-	protected boolean mIsRunning=false;
-	protected boolean mPluginIsRunning=false;
+	// Replaced as a whole by the loader, never modified in place
+	private volatile PluginRegistry registry = PluginRegistry.EMPTY;
+	// The directory passed to Initialize is the first root, AddPluginRoot adds more
+	private final List<PluginRoot> roots = new CopyOnWriteArrayList<PluginRoot>();
+	private PluginRoot primaryRoot = null;
+	protected volatile boolean mMetadataCache=false;
+	private final ClassLoaderTracker classLoaderTracker = new ClassLoaderTracker();
+	// Per plugin counters keyed on the lower cased NiceName, kept across reloads
+	private final ConcurrentHashMap<String, PluginStats> stats = new ConcurrentHashMap<String, PluginStats>();
+	protected volatile long scanCount=0;
+	protected volatile long lastScanNanos=0;
+	protected volatile long maxScanNanos=0;
+	protected volatile boolean mIsRunning=false;
 	protected boolean mIsLoading=false;
 	protected ScheduledExecutorService service = null;
-	protected Future<?> future = null;
-	protected long CheckForNewIntervalMS=0;
-	private static URLClassLoader parentClassLoader;
+	protected long WatchCoalesceMS=0;
+	// How long the loader waits for running calls on a replaced or removed plugin to finish
+	protected volatile long DrainTimeoutMS=30000;
+	// How often the loader checks whether a replaced or removed plugin has no running calls left
+	private static final long DRAIN_CHECK_MS = 10;
+	// States of a call with a deadline
+	private static final int CALL_WAITING = 0, CALL_RUNNING = 1, CALL_DONE = 2, CALL_ABANDONED = 3;
+	protected volatile ExecutorService asyncExecutor = null;
+	private final AtomicInteger asyncTaskIds = new AtomicInteger();
+	// Optional per plugin concurrency limits for asynchronous calls, keyed on the lower cased NiceName
+	private final ConcurrentHashMap<String, PluginLane> lanes = new ConcurrentHashMap<String, PluginLane>();
+	// Deadlines by lowercase NiceName, in milliseconds
+	private final ConcurrentHashMap<String, Long> timeouts = new ConcurrentHashMap<String, Long>();
+	protected volatile long DefaultTimeoutMS=0;
+	protected ExecutorService callPool = null;
+	// Maximum number of calls with a deadline running at the same time, abandoned calls included
+	protected volatile int CallThreads=64;
+	protected volatile int CircuitFailureThreshold=0;
+	protected volatile long CircuitCoolDownMS=0;
+	private final PluginChanges changes = new PluginChanges();
+	protected volatile long ChangeEventWindowMS=0;
+	protected Future<?> changesFlush = null;
+	// Manifest attribute naming the plugin class
+	public static final String MANIFEST_PLUGIN_CLASS = "ABPlugin-Class";
+	// Manifest attribute marking the results of a plugin as cacheable
+	public static final String MANIFEST_CACHEABLE = "ABPlugin-Cacheable";
+	protected boolean mLazyClassLoading=false;
+	protected volatile boolean mShareLoadedJars=false;
+	protected volatile boolean mSwapMode=false;
+	protected volatile int WarmupIterations=0;
+	protected volatile int ResultCacheSize=0;
+	protected volatile long ResultCacheTTLMS=0;
+	// Per instance, hosts can create instances from threads with different context class loaders
+	private URLClassLoader parentClassLoader;
+	private volatile URLClassLoader sharedLibrariesLoader = null;
+	// Shared libraries loaders replaced by SetSharedLibrariesDir, closed once no plugin uses them
+	private final List<URLClassLoader> replacedSharedLibraries = new CopyOnWriteArrayList<URLClassLoader>();
+	// Retired plugins that still have running calls
+	private final Set<ABPluginDefinition> draining = ConcurrentHashMap.newKeySet();
+	private final PackageIndex packageIndex = new PackageIndex();
 	private String AllowedKey="";
-	private final ReadWriteLock pluginsLock = new ReentrantReadWriteLock();
 
 	public void Initialize(BA ba, String eventName, String pluginsDir, String allowedKey) {
 		this._ba = ba;
 		this._event = eventName.toLowerCase(BA.cul);
 		this.pluginsDir = pluginsDir;
 		this.AllowedKey=allowedKey;
+		roots.clear();
+		primaryRoot = new PluginRoot(pluginsDir, 0, "", this::scanRoot);
+		roots.add(primaryRoot);
 		// Compatible with JDK9+ classloader retrieval
 		ClassLoader ctxClassLoader = Thread.currentThread().getContextClassLoader();
 		// In JDK9+, the context classloader might not be a direct URLClassLoader instance
@@ -74,234 +143,1495 @@ public class ABPlugin {
 		}
 	}
 	
+	// Number of jars that are opened, defined and initialized at the same time during a scan of the
+	// plugins directory. 1 (the default) loads them one after another on the loader thread.
+	public void SetLoadParallelism(int threads) {
+		setLoadParallelism(primaryRoot, threads);
+	}
+	
+	// The pool is resized by the loader at the start of its next parallel load, never during a scan
+	private void setLoadParallelism(PluginRoot root, int threads) {
+		root.loadParallelism = Math.max(1, threads);
+	}
+	
+	// Adds another directory to load plugins from, next to the one passed to Initialize.
+	// Priority decides which plugin is used when two roots have a plugin with the same NiceName: the
+	// root with the highest priority wins (the Initialize directory has priority 0), the other plugin
+	// is loaded once the winner is removed. Within one root the first plugin found wins.
+	// The root is checked every checkIntervalMS, or only when the plugin system starts with 0.
+	// With watch True the directory is watched instead, and only checked every checkIntervalMS in case
+	// changes are not reported.
+	// LoadParallelism is the number of jars of this root loaded at the same time.
+	public void AddPluginRoot(String dir, int priority, long checkIntervalMS, boolean watch, int loadParallelism) {
+		File f = new File(dir);
+		if (!f.isDirectory()) {
+			BA.Log("Invalid plugin root, not a directory: " + dir);
+			return;
+		}
+		for (PluginRoot root : roots) {
+			if (new File(root.dir).getAbsoluteFile().equals(f.getAbsoluteFile())) {
+				BA.Log("Plugin root already added: " + dir);
+				return;
+			}
+		}
+		if (checkIntervalMS < 0 || (watch && checkIntervalMS == 0)) {
+			BA.Log("Invalid check interval for plugin root " + dir + ": " + checkIntervalMS + "ms");
+			return;
+		}
+		// The separator cannot be part of a file name, so the keys never clash with those of the first root
+		PluginRoot root = new PluginRoot(dir, priority, "root" + roots.size() + "/", this::scanRoot);
+		root.checkIntervalMS = checkIntervalMS;
+		root.watch = watch;
+		root.loadParallelism = Math.max(1, loadParallelism);
+		if (mMetadataCache) {
+			root.metadataCache = openMetadataCache(root);
+		}
+		roots.add(root);
+		synchronized (this) {
+			if (mIsRunning && service != null && !service.isShutdown()) {
+				startRoot(root);
+			}
+		}
+	}
+	
+	// Loads all jars in the given directory once into a class loader that becomes the parent of every
+	// plugin class loader. Libraries that many plugins bundle (JSON, HTTP clients...) can be put there,
+	// so their classes are defined and compiled only once. Applies to plugins loaded after this call.
+	public void SetSharedLibrariesDir(String dir) {
+		File[] files = new File(dir).listFiles();
+		if (files == null) {
+			BA.Log("Invalid shared libraries directory: " + dir);
+			return;
+		}
+		List<URL> urls = new ArrayList<URL>();
+		List<String> classes = new ArrayList<String>();
+		for (File f : files) {
+			if (!f.getName().endsWith(".jar")) {
+				continue;
+			}
+			try (JarFile jar = new JarFile(f)) {
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					String name = entries.nextElement().getName();
+					if (name.endsWith(".class")) {
+						classes.add(name.substring(0, name.length()-6).replace('/', '.'));
+					}
+				}
+				urls.add(f.toURI().toURL());
+			} catch (IOException e) {
+				BA.Log("Failed to open shared library: " + f.getAbsolutePath() + " - " + e.getMessage());
+			}
+		}
+		// The previous loader stays open while plugins loaded earlier still use it
+		URLClassLoader previous = sharedLibrariesLoader;
+		sharedLibrariesLoader = new URLClassLoader(urls.toArray(new URL[0]), parentClassLoader != null ? parentClassLoader : ClassLoader.getSystemClassLoader());
+		packageIndex.setSharedPackages(PackageIndex.packagesOf(classes, ""));
+		BA.Log("Loaded " + urls.size() + " shared libraries from " + dir);
+		if (previous != null) {
+			replacedSharedLibraries.add(previous);
+			if (!mIsRunning) {
+				closeReplacedSharedLibraries();
+			}
+		}
+	}
+	
+	// Closes the replaced shared libraries loaders no loaded or draining plugin has as parent anymore.
+	// Runs on the loader thread after a scan, or when the plugin system is not running.
+	private void closeReplacedSharedLibraries() {
+		for (URLClassLoader loader : replacedSharedLibraries) {
+			if (usesSharedLibraries(loader)) {
+				continue;
+			}
+			replacedSharedLibraries.remove(loader);
+			try {
+				loader.close();
+				BA.Log("Closed the previous shared libraries");
+			} catch (IOException e) {
+				BA.Log("Error closing the previous shared libraries: " + e.getMessage());
+			}
+		}
+	}
+	
+	private boolean usesSharedLibraries(URLClassLoader loader) {
+		for (ABPluginDefinition def : registry.plugins.values()) {
+			if (def.sharedLibraries == loader) {
+				return true;
+			}
+		}
+		for (ABPluginDefinition def : draining) {
+			if (def.sharedLibraries == loader) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// Returns a Map from package name to a List of the plugin jars that all bundle that package.
+	// These packages are also logged when the plugins are loaded.
+	public anywheresoftware.b4a.objects.collections.Map GetDuplicatePackages() {
+		anywheresoftware.b4a.objects.collections.Map ret = new anywheresoftware.b4a.objects.collections.Map();
+		ret.Initialize();
+		for (Map.Entry<String, Set<String>> entry : packageIndex.duplicates().entrySet()) {
+			ret.Put(entry.getKey(), new ArrayList<Object>(entry.getValue()));
+		}
+		return ret;
+	}
+	
+	// Caches the results of plugins that declare themselves cacheable, either with an IsCacheable sub
+	// returning True or with 'ABPlugin-Cacheable: true' in their manifest. Up to maxEntries results are
+	// kept per plugin (least recently used are evicted first), each for at most ttlMS (0 for no limit).
+	// The cache of a plugin is dropped when it is reloaded or removed. Use maxEntries 0 to disable.
+	public void SetResultCache(int maxEntries, long ttlMS) {
+		ResultCacheSize = Math.max(0, maxEntries);
+		ResultCacheTTLMS = ttlMS;
+		for (ABPluginDefinition def : registry.plugins.values()) {
+			if (def.cacheable) {
+				def.resultCache = ResultCacheSize > 0 ? new PluginResultCache(ResultCacheSize, ResultCacheTTLMS) : null;
+			}
+		}
+	}
+	
+	// Maximum time a replaced or removed plugin gets to finish its running calls before its class
+	// loader is released anyway (default 30000). Scans and change events never wait for it.
+	public void SetDrainTimeout(long timeoutMS) {
+		DrainTimeoutMS = Math.max(0, timeoutMS);
+	}
+	
+	// In swap mode a changed jar is loaded, initialized and warmed up next to the running version, which
+	// keeps serving calls until the registry switches to the new version in one step. The old version is
+	// unloaded once its running calls have finished. If the new version fails to load, the old one stays.
+	public void SetSwapMode(boolean enabled) {
+		mSwapMode = enabled;
+	}
+	
+	// Number of times 'Sub Warmup' of a plugin is called after it is loaded and before it is made
+	// available. Plugins without a Warmup sub are not affected. Use 0 to disable.
+	public void SetWarmupIterations(int iterations) {
+		WarmupIterations = Math.max(0, iterations);
+	}
+	
+	// Packs all plugin jars in jarsDir into one plugin pack file (use the .abpack extension and put it in
+	// the plugins directory). A pack holds an index of the plugins and their classes, so the loader
+	// needs one file and one check per scan for all of them. Returns the number of plugins packed, or -1.
+	// A changed pack is picked up like a changed jar, only the plugins that changed in it are reloaded.
+	// Replace a pack in the plugins directory by writing it under another name and renaming it, as
+	// done here, never by overwriting it in place.
+	public int CreatePluginPack(String jarsDir, String packFile) {
+		File[] files = new File(jarsDir).listFiles((dir, name) -> name.endsWith(".jar"));
+		if (files == null) {
+			BA.Log("Invalid plugin jars directory: " + jarsDir);
+			return -1;
+		}
+		java.util.Arrays.sort(files);
+		try {
+			ClassLoader parent = sharedLibrariesLoader != null ? sharedLibrariesLoader : parentClassLoader;
+			int count = PluginPack.create(java.util.Arrays.asList(files), new File(packFile), parent != null ? parent : ClassLoader.getSystemClassLoader());
+			BA.Log("Packed " + count + " plugins into " + packFile);
+			return count;
+		} catch (IOException e) {
+			BA.Log("Failed to create plugin pack: " + packFile + " - " + e.getMessage());
+			return -1;
+		}
+	}
+	
+	// When True, jars are shared with the other ABPlugin instances in this process that enabled sharing.
+	// An instance that finds the same jar content already loaded reuses its class loader and plugin
+	// class instead of loading it again, but still creates and initializes its own plugin object with
+	// its own key. Static state of the plugin classes is then shared between those instances.
+	public void SetShareLoadedJars(boolean share) {
+		mShareLoadedJars = share;
+	}
+	
+	// When True, only the plugin class is loaded up front and all other classes of the jar are loaded
+	// on demand. Applies to plugins loaded after this call.
+	public void SetLazyClassLoading(boolean lazy) {
+		mLazyClassLoading = lazy;
+	}
+	
+	// Keeps an index of plugin metadata in the plugins directory. Call it after Initialize and before
+	// Start: GetAvailablePlugins then returns the cached plugins right away, while the jars are verified
+	// and loaded in the background. A jar is only searched for its plugin class again when its
+	// fingerprint (size, modification time and content hash) no longer matches.
+	// Each plugin root keeps its own index, its cached plugins are listed until the root is scanned.
+	public void EnableMetadataCache() {
+		mMetadataCache = true;
+		LinkedHashMap<String, PluginRegistry.CachedName> cachedNames = new LinkedHashMap<String, PluginRegistry.CachedName>();
+		for (PluginRoot root : roots) {
+			root.metadataCache = openMetadataCache(root);
+			for (Object name : root.metadataCache.niceNames()) {
+				String key = niceNameKey((String) name);
+				PluginRegistry.CachedName cached = cachedNames.get(key);
+				List<PluginRoot> cachedIn = cached == null ? new ArrayList<PluginRoot>() : new ArrayList<PluginRoot>(cached.roots);
+				cachedIn.add(root);
+				cachedNames.put(key, new PluginRegistry.CachedName(cached == null ? (String) name : cached.niceName, cachedIn));
+			}
+		}
+		if (registry.plugins.isEmpty()) {
+			registry = new PluginRegistry(new LinkedHashMap<String, ABPluginDefinition>(), new HashMap<String, ABPluginDefinition>(), cachedNames);
+		}
+	}
+	
+	private static PluginMetadataCache openMetadataCache(PluginRoot root) {
+		PluginMetadataCache cache = new PluginMetadataCache(new File(root.dir));
+		cache.load();
+		return cache;
+	}
+	
+	// Returns a new List the caller may change (Sort, Add, RemoveAt...). It is one array copy of the
+	// names the loader precomputed for the current snapshot.
 	public anywheresoftware.b4a.objects.collections.List GetAvailablePlugins() {
+		anywheresoftware.b4a.objects.collections.List ret = new anywheresoftware.b4a.objects.collections.List();
+		ret.setObject(new ArrayList<Object>(registry.niceNames));
+		return ret;
+	}
+	
+	// Runs one loader cycle over all plugin roots
+	Runnable runnable = new Runnable() {
+		public void run() {
+			for (PluginRoot root : roots) {
+				scanRoot(root);
+			}
+		}
+	};
+	
+	// One loader cycle for one root. Always runs on the loader thread. A failed scan is logged and the
+	// root is scanned again at its next check, an exception must never end its schedule.
+	private void scanRoot(PluginRoot root) {
+		if (!mIsRunning) {
+			return;
+		}
+		mIsLoading=true;
+		try {
+			scanRootFiles(root);
+		} catch (RuntimeException e) {
+			BA.Log("Failed to scan plugins directory: " + root.dir + " - " + e);
+		} finally {
+			mIsLoading=false;
+		}
+	}
+	
+	// Loads new and changed plugins of the root, unloads removed ones and publishes the new registry
+	private void scanRootFiles(PluginRoot root) {
+		long scanStart = System.nanoTime();
+		Map<String, Boolean> toRemove = new LinkedHashMap<String,Boolean>();
+		List<String> toAdd = new ArrayList<String>();
+		List<ABPluginDefinition> toRetire = new ArrayList<ABPluginDefinition>();
+		Set<String> swapping = new HashSet<String>();
+		
+		// Work on a private copy of the current snapshot, it is published once at the end of the cycle
+		PluginRegistry current = registry;
+		LinkedHashMap<String, ABPluginDefinition> plugins = new LinkedHashMap<String, ABPluginDefinition>(current.plugins);
+		HashMap<String, ABPluginDefinition> pluginsByNiceName = new HashMap<String, ABPluginDefinition>(current.pluginsByNiceName);
+		
+		// Get plugins to remove, the plugins of other roots are left alone
+		for (ABPluginDefinition def: plugins.values()) {
+			if (def.root == root) {
+				toRemove.put(def.key, true);
+			}
+		}
+		
+		boolean NeedsReload=false;
+		File dh = new File(root.dir);
+		if (!dh.exists() || !dh.isDirectory()) {
+			BA.Log("Invalid plugins directory: " + root.dir);
+			return;
+		}
+		
+		File[] files = dh.listFiles();
+		if (files == null) {
+			BA.Log("Failed to list files in plugins directory: " + root.dir);
+			return;
+		}
+		
+		// Path of every plugin found, with the version to compare with the loaded one: the last
+		// modified time of a jar, the fingerprint of a packed plugin
+		Map<String, Long> found = new LinkedHashMap<String, Long>();
+		Set<String> foundPacks = new HashSet<String>();
+		for (File f: files) {
+			if (f.getName().endsWith(".jar")) {
+				found.put(f.getAbsolutePath(), f.lastModified());
+			} else if (f.getName().endsWith(PluginPack.EXTENSION)) {
+				PluginPack pack = openPack(root, f);
+				if (pack != null) {
+					foundPacks.add(f.getAbsolutePath());
+					for (PluginPack.Item item : pack.items) {
+						found.put(pack.path(item), item.fingerprint);
+					}
+				}
+			}
+		}
+		root.packs.keySet().retainAll(foundPacks);
+		
+		Set<String> foundKeys = new HashSet<String>();
+		for (Map.Entry<String, Long> plugin: found.entrySet()) {
+			String pluginName = root.keyPrefix + pluginKey(plugin.getKey());
+			foundKeys.add(pluginName);
+			toRemove.remove(pluginName);
+			
+			// Lost to a plugin with the same NiceName. Its Initialize already ran once, so it is not loaded
+			// again on every scan but only when its jar changes or the winner is removed.
+			PluginRoot.Shadowed shadowed = root.shadowed.get(pluginName);
+			if (shadowed != null) {
+				if (shadowed.version == plugin.getValue()) {
+					continue;
+				}
+				root.shadowed.remove(pluginName);
+			}
+			
+			// Check if plugin needs update
+			boolean needsUpdate = false;
+			ABPluginDefinition def = plugins.get(pluginName);
+			if (def == null) {
+				toAdd.add(plugin.getKey());
+			} else if (plugin.getValue() != def.lastModified) {
+				needsUpdate = true;
+			}
+			
+			if (needsUpdate) {
+				toAdd.add(plugin.getKey());
+				if (mSwapMode) {
+					// The old version keeps serving until the new one is loaded and warmed up
+					swapping.add(pluginName);
+				} else {
+					// Unload the old version and load the changed jar again
+					toRemove.put(pluginName, true);
+				}
+			}
+		}
+		
+		root.shadowed.keySet().retainAll(foundKeys);
+		
+		// Only unload the plugins that were deleted or changed, all others stay loaded as is
+		if (!toRemove.isEmpty()) {
+			BA.Log("Unloading deleted or changed plugins: " + toRemove.keySet());
+			for (String pluginName: toRemove.keySet()) {
+				ABPluginDefinition def = plugins.remove(pluginName);
+				if (def != null) {
+					pluginsByNiceName.remove(niceNameKey(def.NiceName), def);
+					toRetire.add(def);
+				}
+			}
+			NeedsReload = true;
+		}
+		
+		// Loading can run in parallel, registering is done in directory order so duplicates resolve the same way
+		List<ABPluginDefinition> loaded = loadPlugins(root, toAdd);
+		boolean Added = false;
+		for (int i=0; i<loaded.size(); i++) {
+			ABPluginDefinition def = loaded.get(i);
+			String pluginName = root.keyPrefix + pluginKey(toAdd.get(i));
+			ABPluginDefinition old = swapping.contains(pluginName) ? plugins.get(pluginName) : null;
+			if (def == null) {
+				if (old != null) {
+					BA.Log("Keeping the running version of plugin " + old.NiceName + ", the changed jar failed to load");
+				}
+				continue;
+			}
+			if (old != null) {
+				pluginsByNiceName.remove(niceNameKey(old.NiceName), old);
+			}
+			String niceNameKey = niceNameKey(def.NiceName);
+			ABPluginDefinition existing = pluginsByNiceName.get(niceNameKey);
+			if (existing != null && existing.root.priority < root.priority) {
+				// A root with a higher priority wins, the other plugin comes back when this one is removed
+				BA.Log("Plugin '" + def.NiceName + "' in " + root.dir + " replaces the one in " + existing.root.dir);
+				plugins.remove(existing.key);
+				pluginsByNiceName.remove(niceNameKey);
+				existing.root.shadowed.put(existing.key, new PluginRoot.Shadowed(existing.lastModified, niceNameKey, existing.path));
+				toRetire.add(existing);
+				NeedsReload = true;
+				existing = null;
+			}
+			if (existing == null) {
+				// Replaces the old version, if any, at the same position
+				addToRegistry(root, pluginName, toAdd.get(i), def, plugins, pluginsByNiceName);
+				if (old != null) {
+					toRetire.add(old);
+					NeedsReload = true;
+					BA.Log("Swapped in the new version of plugin " + def.NiceName);
+				}
+				Added = true;
+			} else {
+				BA.Log("Duplicate plugin name '" + def.NiceName + "' in " + def.Name + ", already used by " + existing.Name + ". Plugin not loaded until it changes or " + existing.Name + " is removed");
+				closeClassLoader(def);
+				root.shadowed.put(pluginName, new PluginRoot.Shadowed(def.lastModified, niceNameKey, toAdd.get(i)));
+				if (old != null) {
+					pluginsByNiceName.put(niceNameKey(old.NiceName), old);
+				}
+			}
+		}
+		
+		// A name this scan freed goes to the best plugin that lost it in the same scan, so the host sees
+		// one update instead of a removal followed by an addition
+		for (String niceNameKey: current.pluginsByNiceName.keySet()) {
+			if (!pluginsByNiceName.containsKey(niceNameKey) && promoteShadowed(niceNameKey, plugins, pluginsByNiceName)) {
+				Added = true;
+			}
+		}
+		
+		PluginMetadataCache metadataCache = root.metadataCache;
+		if (metadataCache != null) {
+			// Forget jars that are gone, including those only known from a previous run
+			Set<String> keys = new HashSet<String>();
+			for (ABPluginDefinition def: plugins.values()) {
+				if (def.root == root) {
+					keys.add(def.key.substring(root.keyPrefix.length()));
+				}
+			}
+			metadataCache.retainOnly(keys);
+			metadataCache.save();
+		}
+		
+		// Names from the metadata cache of this root are replaced after its first scan, those of roots
+		// that have not been scanned yet stay listed
+		boolean cachedHere = current.hasCachedNames(root);
+		boolean published = false;
+		if (NeedsReload || Added || cachedHere) {
+			LinkedHashMap<String, PluginRegistry.CachedName> cachedNames = cachedHere ? current.cachedNamesWithout(root) : new LinkedHashMap<String, PluginRegistry.CachedName>(current.cachedNames);
+			PluginRegistry next = new PluginRegistry(plugins, pluginsByNiceName, cachedNames);
+			registry = next;
+			changes.add(current, next);
+			for (ABPluginDefinition def: toRetire) {
+				retirePlugin(def);
+			}
+			published = true;
+		}
+		// The events run host code, which must not keep this scan from finishing its bookkeeping
+		try {
+			if (published) {
+				publishChanges();
+			}
+		} finally {
+			if (!replacedSharedLibraries.isEmpty()) {
+				closeReplacedSharedLibraries();
+			}
+			recordScan(System.nanoTime() - scanStart);
+		}
+	}
+	
+	// Raises the events now, or at the end of the coalescing window that starts with the first change
+	private void publishChanges() {
+		if (ChangeEventWindowMS <= 0) {
+			raiseChanges();
+			return;
+		}
+		synchronized (this) {
+			if (changesFlush != null && !changesFlush.isDone()) {
+				return;
+			}
+			try {
+				changesFlush = service.schedule(this::raiseChanges, ChangeEventWindowMS, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				raiseChanges();
+			}
+		}
+	}
+	
+	// Runs on the loader thread
+	private void raiseChanges() {
+		List<String[]> pending = changes.drain();
+		if (pending.isEmpty()) {
+			return;
+		}
+		anywheresoftware.b4a.objects.collections.List list = new anywheresoftware.b4a.objects.collections.List();
+		list.Initialize();
+		for (String[] change: pending) {
+			anywheresoftware.b4a.objects.collections.Map m = new anywheresoftware.b4a.objects.collections.Map();
+			m.Initialize();
+			m.Put("NiceName", change[0]);
+			m.Put("Change", change[1]);
+			list.Add(m.getObject());
+		}
+		BA.Log("Plugins changed (" + pending.size() + "), raising event");
+		_ba.raiseEvent(this, _event + "_pluginschanged", new Object[] {});
+		_ba.raiseEvent(this, _event + "_pluginsupdated", new Object[] {list.getObject()});
+	}
+	
+	// Changes published within windowMS are reported together: PluginsChanged and PluginsUpdated are
+	// raised once at the end of the window. PluginsUpdated gets a List of Maps with NiceName and
+	// Change (Added, Updated or Removed), with at most one entry per plugin. Use 0 (the default) to
+	// raise the events after every scan that changed something.
+	public void SetChangeEventWindow(long windowMS) {
+		ChangeEventWindowMS = Math.max(0, windowMS);
+	}
+	
+	// Registers a loaded plugin under its registry key and NiceName
+	private void addToRegistry(PluginRoot root, String pluginName, String path, ABPluginDefinition def, LinkedHashMap<String, ABPluginDefinition> plugins, HashMap<String, ABPluginDefinition> pluginsByNiceName) {
+		def.root = root;
+		def.key = pluginName;
+		def.path = path;
+		pluginsByNiceName.put(niceNameKey(def.NiceName), def);
+		plugins.put(pluginName, def);
+		def.stats = stats.computeIfAbsent(niceNameKey(def.NiceName), k -> new PluginStats());
+		def.stats.recordLoad(def.NiceName, def.loadNanos, def.initializeNanos);
+		packageIndex.add(def);
+		if (root.metadataCache != null && !(def.classLoader instanceof PackClassLoader)) {
+			root.metadataCache.put(pluginName.substring(root.keyPrefix.length()), new File(path), def.objectClass.getName(), def.NiceName);
+		}
+		BA.Log("Successfully loaded plugin: " + def.NiceName);
+	}
+	
+	// A NiceName is free again: loads the plugin that lost it, from the root with the highest priority.
+	// Returns True if a plugin was added.
+	private boolean promoteShadowed(String niceNameKey, LinkedHashMap<String, ABPluginDefinition> plugins, HashMap<String, ABPluginDefinition> pluginsByNiceName) {
+		boolean added = false;
+		while (!pluginsByNiceName.containsKey(niceNameKey)) {
+			PluginRoot best = null;
+			String bestKey = null;
+			for (PluginRoot root : roots) {
+				for (Map.Entry<String, PluginRoot.Shadowed> entry : root.shadowed.entrySet()) {
+					if (entry.getValue().niceNameKey.equals(niceNameKey) && (best == null || root.priority > best.priority)) {
+						best = root;
+						bestKey = entry.getKey();
+						break;
+					}
+				}
+			}
+			if (best == null) {
+				return added;
+			}
+			PluginRoot.Shadowed candidate = best.shadowed.remove(bestKey);
+			ABPluginDefinition def = loadPluginAt(best, candidate.path);
+			if (def == null) {
+				// Gone or broken since it lost, its own root sorts it out
+				scanSoon(best);
+				continue;
+			}
+			String loadedKey = niceNameKey(def.NiceName);
+			if (pluginsByNiceName.containsKey(loadedKey)) {
+				// Renamed to a NiceName that is taken
+				BA.Log("Duplicate plugin name '" + def.NiceName + "' in " + def.Name + ". Plugin not loaded until it changes or the other plugin is removed");
+				closeClassLoader(def);
+				best.shadowed.put(bestKey, new PluginRoot.Shadowed(def.lastModified, loadedKey, candidate.path));
+				continue;
+			}
+			addToRegistry(best, bestKey, candidate.path, def, plugins, pluginsByNiceName);
+			added = true;
+		}
+		return added;
+	}
+	
+	// Registry key of the plugin at path within its root: the lower cased jar name without extension, or for a packed
+	// plugin the lower cased pack file name and plugin name
+	private static String pluginKey(String path) {
+		int separator = path.lastIndexOf(PluginPack.SEPARATOR);
+		if (separator >= 0) {
+			return (new File(path.substring(0, separator)).getName() + path.substring(separator)).toLowerCase();
+		}
+		String name = new File(path).getName();
+		return name.substring(0, name.length()-4).toLowerCase();
+	}
+	
+	// Returns the pack, opened again only when the file changed. If a changed pack cannot be read,
+	// for example because it is still being written, the previous version is used until it can.
+	private PluginPack openPack(PluginRoot root, File f) {
+		PluginPack pack = root.packs.get(f.getAbsolutePath());
+		if (pack != null && pack.lastModified == f.lastModified()) {
+			return pack;
+		}
+		try {
+			PluginPack opened = PluginPack.open(f);
+			root.packs.put(f.getAbsolutePath(), opened);
+			BA.Log("Opened plugin pack " + f.getName() + " with " + opened.items.size() + " plugins");
+			return opened;
+		} catch (IOException e) {
+			BA.Log("Failed to open plugin pack: " + f.getAbsolutePath() + " - " + e.getMessage());
+			return pack;
+		}
+	}
+	
+	private void recordScan(long nanos) {
+		scanCount++;
+		lastScanNanos = nanos;
+		maxScanNanos = Math.max(maxScanNanos, nanos);
+	}
+	
+	// Returns a Map with performance counters:
+	// Scans, LastScanMS and MaxScanMS for the loader, and Plugins, a Map from NiceName to a Map with
+	// Invocations, Errors, InFlight, P50MS, P99MS, MaxMS, LoadMS, InitializeMS, Reloads, CacheHits, CacheMisses,
+	// Timeouts, Rejected and CircuitOpen.
+	// Latency percentiles are upper bounds of power-of-two buckets.
+	public anywheresoftware.b4a.objects.collections.Map GetStats() {
+		anywheresoftware.b4a.objects.collections.Map plugins = new anywheresoftware.b4a.objects.collections.Map();
+		plugins.Initialize();
+		PluginRegistry current = registry;
+		for (Map.Entry<String, PluginStats> entry : stats.entrySet()) {
+			PluginStats st = entry.getValue();
+			ABPluginDefinition def = current.pluginsByNiceName.get(entry.getKey());
+			anywheresoftware.b4a.objects.collections.Map m = new anywheresoftware.b4a.objects.collections.Map();
+			m.Initialize();
+			m.Put("Invocations", st.getInvocations());
+			m.Put("Errors", st.getErrors());
+			m.Put("InFlight", def == null ? 0 : def.inFlight.get());
+			m.Put("P50MS", st.percentileNanos(0.5) / 1000000.0);
+			m.Put("P99MS", st.percentileNanos(0.99) / 1000000.0);
+			m.Put("MaxMS", st.getMaxNanos() / 1000000.0);
+			m.Put("LoadMS", st.loadNanos / 1000000.0);
+			m.Put("InitializeMS", st.initializeNanos / 1000000.0);
+			m.Put("Reloads", st.getReloads());
+			m.Put("CacheHits", st.cacheHits.sum());
+			m.Put("CacheMisses", st.cacheMisses.sum());
+			m.Put("Timeouts", st.timeouts.sum());
+			m.Put("Rejected", st.rejected.sum());
+			m.Put("CircuitOpen", def != null && def.breaker.isOpen(CircuitFailureThreshold));
+			plugins.Put(st.niceName, m.getObject());
+		}
+		
+		anywheresoftware.b4a.objects.collections.Map ret = new anywheresoftware.b4a.objects.collections.Map();
+		ret.Initialize();
+		ret.Put("Scans", scanCount);
+		ret.Put("LastScanMS", lastScanNanos / 1000000.0);
+		ret.Put("MaxScanMS", maxScanNanos / 1000000.0);
+		ret.Put("Plugins", plugins.getObject());
+		return ret;
+	}
+	
+	// Loads the given jars, on the load pool when parallel loading is enabled. The result has the
+	// same order as jarPaths, with null for jars that failed to load.
+	private List<ABPluginDefinition> loadPlugins(PluginRoot root, List<String> jarPaths) {
+		List<ABPluginDefinition> loaded = new ArrayList<ABPluginDefinition>(jarPaths.size());
+		int threads = root.loadParallelism;
+		if (threads <= 1 || jarPaths.size() <= 1) {
+			for (String path : jarPaths) {
+				loaded.add(loadPluginAt(root, path));
+			}
+			return loaded;
+		}
+		
+		ExecutorService pool = getLoadPool(root, threads);
+		List<Future<ABPluginDefinition>> futures = new ArrayList<Future<ABPluginDefinition>>(jarPaths.size());
+		for (String path : jarPaths) {
+			futures.add(pool.submit(() -> loadPluginAt(root, path)));
+		}
+		boolean interrupted = false;
+		for (Future<ABPluginDefinition> f : futures) {
+			if (interrupted) {
+				// Loads that did not start yet are dropped, those that did are closed once they finish
+				if (!f.cancel(false)) {
+					discardLoad(f);
+				}
+				loaded.add(null);
+				continue;
+			}
+			try {
+				loaded.add(f.get());
+			} catch (InterruptedException e) {
+				interrupted = true;
+				discardLoad(f);
+				loaded.add(null);
+			} catch (ExecutionException e) {
+				BA.Log("Error loading plugin: " + e.getCause());
+				loaded.add(null);
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return loaded;
+	}
+	
+	// Waits for a load the scan no longer uses and closes the plugin it loaded
+	private void discardLoad(Future<ABPluginDefinition> f) {
+		while (true) {
+			try {
+				ABPluginDefinition def = f.get();
+				if (def != null) {
+					closeClassLoader(def);
+				}
+				return;
+			} catch (InterruptedException e) {
+				// Keep waiting, the caller restores the interrupt
+			} catch (ExecutionException | CancellationException e) {
+				return;
+			}
+		}
+	}
+	
+	// Opens, defines and initializes one jar. Does not touch the registry, so it is safe to run for
+	// several jars at the same time.
+	private ABPluginDefinition loadPluginAt(PluginRoot root, String path) {
+		int separator = path.lastIndexOf(PluginPack.SEPARATOR);
+		if (separator >= 0) {
+			return loadPackedPlugin(root, path.substring(0, separator), path.substring(separator + PluginPack.SEPARATOR.length()));
+		}
+		return loadPlugin(root, new File(path));
+	}
+	
+	private ABPluginDefinition loadPlugin(PluginRoot root, File f) {
+		if (!f.exists() || !f.canRead()) {
+			BA.Log("Cannot read JAR file: " + f.getAbsolutePath());
+			return null;
+		}
+		
+		ABPluginDefinition def = new ABPluginDefinition();
+		def.lastModified = f.lastModified();
+		String pluginName = f.getName().substring(0, f.getName().length()-4).toLowerCase();
+		PluginMetadataCache metadataCache = root.metadataCache;
+		PluginMetadataCache.Entry cached = metadataCache == null ? null : metadataCache.lookup(pluginName, f);
+		long start = System.nanoTime();
+		URLClassLoader sharedLibraries = sharedLibrariesLoader;
+		ClassLoader parent = sharedLibraries != null ? sharedLibraries : parentClassLoader;
+		def.sharedLibraries = sharedLibraries;
+		SharedJars.Key sharedKey = mShareLoadedJars ? SharedJars.key(f, parent) : null;
+		SharedJars.Entry shared = sharedKey == null ? null : SharedJars.acquire(sharedKey);
+		boolean loaded;
+		if (shared != null) {
+			def.sharedJar = sharedKey;
+			loaded = useSharedJar(def, f, shared);
+		} else {
+			loaded = loadJarFile(root.dir, f, parent, def, cached == null ? null : cached.mainClass);
+			if (loaded && sharedKey != null && SharedJars.register(sharedKey, def)) {
+				def.sharedJar = sharedKey;
+			}
+		}
+		if (loaded) {
+			def.loadNanos = System.nanoTime() - start;
+			return initializePlugin(def);
+		}
+		// Not loaded, release what loadJarFile kept open
+		closeClassLoader(def);
+		return null;
+	}
+	
+	// Loads a plugin from a plugin pack opened by the current scan
+	private ABPluginDefinition loadPackedPlugin(PluginRoot root, String packPath, String name) {
+		PluginPack pack = root.packs.get(packPath);
+		PluginPack.Item item = pack == null ? null : pack.get(name);
+		if (item == null) {
+			BA.Log("Plugin " + name + " not found in plugin pack: " + packPath);
+			return null;
+		}
+		
+		ABPluginDefinition def = new ABPluginDefinition();
+		def.Name = item.name;
+		def.lastModified = item.fingerprint;
+		def.cacheable = item.cacheable;
+		long start = System.nanoTime();
+		URLClassLoader sharedLibraries = sharedLibrariesLoader;
+		ClassLoader parent = sharedLibraries != null ? sharedLibraries : parentClassLoader;
+		def.sharedLibraries = sharedLibraries;
+		List<String> classes = new ArrayList<String>();
+		PluginClassLoader classLoader;
+		try {
+			Map<String, ByteBuffer> entries = pack.entries(item);
+			classLoader = new PackClassLoader(item.name, entries, parent != null ? parent : ClassLoader.getSystemClassLoader());
+			def.classLoader = classLoader;
+			for (String entry : entries.keySet()) {
+				if (entry.endsWith(".class")) {
+					classes.add(entry.substring(0, entry.length()-6).replace('/', '.'));
+				}
+			}
+			def.objectClass = classLoader.loadClass(item.entryClass);
+			def.object = def.objectClass.getDeclaredConstructor().newInstance();
+			ResolveMethods(def);
+			BA.Log("Loaded plugin class: " + item.entryClass + " from " + pack.file.getName());
+		} catch (Exception | LinkageError e) {
+			BA.Log("Failed to load or instantiate main class " + item.entryClass + " from " + pack.file.getName() + " - " + e);
+			closeClassLoader(def);
+			return null;
+		}
+		if (!mLazyClassLoading) {
+			for (String className : classes) {
+				try {
+					if (!className.equals(item.entryClass)) {
+						classLoader.loadClass(className);
+					}
+				} catch (ClassNotFoundException | LinkageError e) {
+					BA.Log("Failed to preload class: " + className);
+				}
+			}
+		}
+		int dot = item.entryClass.lastIndexOf('.');
+		def.packages = PackageIndex.packagesOf(classes, dot > 0 ? item.entryClass.substring(0, dot) : "");
+		def.loadNanos = System.nanoTime() - start;
+		return initializePlugin(def);
+	}
+	
+	// Runs Initialize and reads the plugin settings of a plugin whose class was just loaded.
+	// Returns null, with its class loader closed, if the plugin cannot be used.
+	private ABPluginDefinition initializePlugin(ABPluginDefinition def) {
+		long start = System.nanoTime();
+		boolean initialized = RunInitialize(def);
+		def.initializeNanos = System.nanoTime() - start;
+		if (initialized) {
+			String niceName = innerGetNiceName(def);
+			if (niceName != null && !niceName.isEmpty()) {
+				def.NiceName = niceName;
+				if (!def.cacheable) {
+					def.cacheable = innerIsCacheable(def);
+				}
+				if (def.cacheable && ResultCacheSize > 0) {
+					def.resultCache = new PluginResultCache(ResultCacheSize, ResultCacheTTLMS);
+				}
+				warmUp(def);
+				return def;
+			}
+			BA.Log("Plugin returned empty NiceName: " + def.Name);
+		}
+		closeClassLoader(def);
+		return null;
+	}
+	
+	// Creates this instance's own plugin object from a jar another instance already loaded
+	private boolean useSharedJar(ABPluginDefinition def, File f, SharedJars.Entry shared) {
+		def.Name = f.getName().substring(0, f.getName().length()-4);
+		def.classLoader = shared.classLoader;
+		def.objectClass = shared.objectClass;
+		def.packages = shared.packages;
+		def.cacheable = shared.cacheable;
+		try {
+			def.object = def.objectClass.getDeclaredConstructor().newInstance();
+			ResolveMethods(def);
+			BA.Log("Using shared plugin class: " + def.objectClass.getName());
+			return true;
+		} catch (Exception e) {
+			BA.Log("Failed to instantiate shared plugin class " + def.objectClass.getName() + " - " + e.getMessage());
+			return false;
+		}
+	}
+	
+	// Only called on the loader thread, so a pool of the wrong size can be replaced here safely
+	private synchronized ExecutorService getLoadPool(PluginRoot root, int threads) {
+		if (root.loadPool == null || root.loadPool.isShutdown() || root.loadPoolThreads != threads) {
+			if (root.loadPool != null) {
+				root.loadPool.shutdown();
+			}
+			final AtomicInteger threadCount = new AtomicInteger();
+			root.loadPool = Executors.newFixedThreadPool(threads, r -> {
+				Thread thread = new Thread(r, "ABPlugin-LoadWorker-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			root.loadPoolThreads = threads;
+		}
+		return root.loadPool;
+	}
+	
+	private boolean RunInitialize(ABPluginDefinition def) {
+		java.lang.reflect.Method m = def.initializeMethod;
+		if (m==null) {
+			BA.Log("_initialize method not found in plugin: " + def.Name);
+			return false;
+		}
+		try {
+			Object result = m.invoke(def.object, new Object[] {_ba});
+			if (result instanceof String) {
+				String returnedKey = (String) result;
+				// Use equals method instead of == to compare strings
+				boolean keyMatch = (AllowedKey != null && AllowedKey.equals(returnedKey));
+				if (!keyMatch) {
+					BA.Log("Plugin initialization failed: Invalid key for " + def.Name);
+				}
+				return keyMatch;
+			} else {
+				BA.Log("Plugin initialization returned non-string value for " + def.Name);
+				return false;
+			}
+		} catch (IllegalAccessException e) {
+			BA.Log("Illegal access to initialization method for " + def.Name + " - " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			BA.Log("Illegal argument in initialization for " + def.Name + " - " + e.getMessage());
+		} catch (InvocationTargetException e) {
+			BA.Log("Plugin initialization exception for " + def.Name + " - " + e.getTargetException().getMessage());
+		}
+		return false;
+	}
+	
+	public Object RunPlugin(String pluginNiceName, String tag, anywheresoftware.b4a.objects.collections.Map params) {
+		try {
+			return runPlugin(pluginNiceName, tag, params, null);
+		} catch (Exception e) {
+			// Already logged
+			return null;
+		}
+	}
+	
+	// Common implementation of all run entry points. Failures are logged here and then thrown,
+	// so asynchronous callers can report them.
+	private Object runPlugin(String pluginNiceName, String tag, anywheresoftware.b4a.objects.collections.Map params, Object[] args) throws Exception {
+		if (pluginNiceName == null || pluginNiceName.isEmpty()) {
+			BA.Log("Empty plugin name provided");
+			throw new IllegalArgumentException("Empty plugin name provided");
+		}
+		
+		ABPluginDefinition def = acquirePlugin(pluginNiceName);
+		if (def==null) {
+			BA.Log("No plugin found with name: '" + pluginNiceName + "'");
+			throw new IllegalArgumentException("No plugin found with name: '" + pluginNiceName + "'");
+		}
+		return invokeAcquired(def, tag, params, args);
+	}
+	
+	// Runs _run on a plugin returned by acquirePlugin and releases it afterwards. When args is not
+	// null the call comes from RunPluginArgs and _runargs is used if the plugin has it.
+	private Object invokeAcquired(ABPluginDefinition def, String tag, anywheresoftware.b4a.objects.collections.Map params, Object[] args) throws Exception {
+		long start = System.nanoTime();
+		boolean failed = true;
+		int threshold = CircuitFailureThreshold;
+		PluginCircuitBreaker breaker = null;
+		boolean rejected = false;
+		try {
+			java.lang.reflect.Method m = def.runMethod;
+			Object[] callArgs;
+			if (args != null && def.runArgsMethod != null) {
+				m = def.runArgsMethod;
+				callArgs = new Object[] {tag, args};
+			} else {
+				if (m==null) {
+					BA.Log("'Sub Run(Tag As String, Params As Map) As Object' not found in plugin: " + def.Name);
+					return "";
+				}
+				callArgs = new Object[] {tag, args != null ? argsToParams(args) : params};
+			}
+			PluginResultCache cache = def.resultCache;
+			Object cacheKey = null;
+			if (cache != null) {
+				cacheKey = args != null ? PluginResultCache.key(tag, args) : PluginResultCache.key(tag, params);
+				Object cached = cache.get(cacheKey);
+				if (cached != PluginResultCache.MISS) {
+					def.stats.cacheHits.increment();
+					failed = false;
+					return cached;
+				}
+				def.stats.cacheMisses.increment();
+			}
+			if (threshold > 0) {
+				if (!def.breaker.tryAcquire(threshold)) {
+					rejected = true;
+					def.stats.rejected.increment();
+					if (def.breaker.firstRejection()) {
+						BA.Log("Circuit open for plugin " + def.NiceName + ", rejecting calls");
+					}
+					throw new IllegalStateException("Circuit open for plugin " + def.NiceName);
+				}
+				breaker = def.breaker;
+			}
+			Object ret = invokeRun(def, m, callArgs);
+			if (cache != null) {
+				cache.put(cacheKey, ret);
+			}
+			failed = false;
+			return ret;
+		} catch (IllegalAccessException e) {
+			BA.Log("Illegal access to run method for plugin " + def.Name + " - " + e.getMessage());
+			throw e;
+		} catch (IllegalArgumentException e) {
+			BA.Log("Illegal argument running plugin " + def.Name + " - " + e.getMessage());
+			throw e;
+		} catch (InvocationTargetException e) {
+			BA.Log("Exception running plugin " + def.Name + " - " + e.getTargetException().getMessage());
+			throw e;
+		} catch (TimeoutException e) {
+			def.stats.timeouts.increment();
+			BA.Log("Plugin " + def.Name + " timed out - " + e.getMessage());
+			throw e;
+		} catch (RejectedExecutionException e) {
+			BA.Log("No call thread available for plugin " + def.Name + ", " + CallThreads + " calls with a deadline are running");
+			throw e;
+		} catch (InterruptedException e) {
+			BA.Log("Interrupted while waiting for plugin " + def.Name);
+			// The public entry points return Null, keep the interrupt for the caller
+			Thread.currentThread().interrupt();
+			throw e;
+		} finally {
+			def.inFlight.decrementAndGet();
+			if (!rejected) {
+				def.stats.record(System.nanoTime() - start, failed);
+			}
+			if (breaker != null && breaker.record(!failed, threshold, CircuitCoolDownMS)) {
+				BA.Log("Circuit opened for plugin " + def.NiceName + ", calls are rejected for " + CircuitCoolDownMS + "ms");
+			}
+		}
+	}
+	
+	// Calls _run, on a call thread when the plugin has a deadline. A call that passes its deadline is
+	// interrupted and abandoned: the caller gets a TimeoutException, the call keeps the plugin loaded
+	// until it really ends.
+	private Object invokeRun(ABPluginDefinition def, java.lang.reflect.Method m, Object[] callArgs) throws Exception {
+		long timeoutMS = DefaultTimeoutMS;
+		if (!timeouts.isEmpty()) {
+			Long timeout = timeouts.get(niceNameKey(def.NiceName));
+			if (timeout != null) {
+				timeoutMS = timeout;
+			}
+		}
+		if (timeoutMS <= 0) {
+			return m.invoke(def.object, callArgs);
+		}
+		// The caller's in-flight count covers the call while the caller waits for it. A call that is
+		// abandoned while running takes over a count of its own and releases it when it really ends.
+		AtomicInteger state = new AtomicInteger(CALL_WAITING);
+		Future<Object> call = getCallPool().submit(() -> {
+			if (!state.compareAndSet(CALL_WAITING, CALL_RUNNING)) {
+				return null;
+			}
+			try {
+				return m.invoke(def.object, callArgs);
+			} finally {
+				if (!state.compareAndSet(CALL_RUNNING, CALL_DONE)) {
+					def.inFlight.decrementAndGet();
+				}
+			}
+		});
+		try {
+			return call.get(timeoutMS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			call.cancel(true);
+			abandonCall(def, state);
+			throw new TimeoutException("no result after " + timeoutMS + "ms");
+		} catch (InterruptedException e) {
+			call.cancel(true);
+			abandonCall(def, state);
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+	
+	// Called when the caller stops waiting. A call that has not started never will, a running call
+	// keeps the plugin loaded with its own in-flight count.
+	private void abandonCall(ABPluginDefinition def, AtomicInteger state) {
+		if (state.compareAndSet(CALL_WAITING, CALL_DONE)) {
+			return;
+		}
+		def.inFlight.incrementAndGet();
+		if (!state.compareAndSet(CALL_RUNNING, CALL_ABANDONED)) {
+			// Ended in the meantime
+			def.inFlight.decrementAndGet();
+		}
+	}
+	
+	// Threads are created on demand up to CallThreads and end after a minute without calls. When all are
+	// busy, for example with hung calls that timed out, new calls with a deadline are rejected.
+	private synchronized ExecutorService getCallPool() {
+		if (callPool == null || callPool.isShutdown()) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			callPool = new ThreadPoolExecutor(0, CallThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+				Thread thread = new Thread(r, "ABPlugin-Call-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return callPool;
+	}
+	
+	// Sets the deadline for 'Sub Run' of one plugin. A call that takes longer is interrupted and
+	// abandoned, and the caller gets Null (RunPlugin) or a failure (async and batch calls).
+	// Use -1 to fall back to the default deadline, 0 to run the plugin without deadline.
+	public void SetPluginTimeout(String pluginNiceName, long timeoutMS) {
+		if (timeoutMS < 0) {
+			timeouts.remove(niceNameKey(pluginNiceName));
+		} else {
+			timeouts.put(niceNameKey(pluginNiceName), timeoutMS);
+		}
+	}
+	
+	// Deadline for plugins without their own timeout. Use 0 (the default) for no deadline.
+	public void SetDefaultPluginTimeout(long timeoutMS) {
+		DefaultTimeoutMS = Math.max(0, timeoutMS);
+	}
+	
+	// Maximum number of plugin calls with a deadline running at the same time (default 64). A call that
+	// timed out keeps its thread until it really ends, so this also limits how many threads hung
+	// plugins can hold. Calls beyond the limit fail right away.
+	public synchronized void SetCallThreads(int threads) {
+		CallThreads = Math.max(1, threads);
+		if (callPool instanceof ThreadPoolExecutor) {
+			((ThreadPoolExecutor) callPool).setMaximumPoolSize(CallThreads);
+		}
+	}
+	
+	// After failureThreshold consecutive exceptions or timeouts, calls to a plugin are rejected right
+	// away for coolDownMS. Then one call is let through: if it succeeds the plugin is used normally
+	// again, otherwise calls are rejected for another coolDownMS. Use 0 to disable.
+	public void SetCircuitBreaker(int failureThreshold, long coolDownMS) {
+		CircuitCoolDownMS = Math.max(0, coolDownMS);
+		CircuitFailureThreshold = Math.max(0, failureThreshold);
+	}
+	
+	// Runs 'Sub RunArgs(Tag As String, Args() As Object) As Object' of the plugin. The arguments are passed
+	// by position, so no Map has to be created and filled for every call. Plugins without RunArgs are
+	// called through 'Sub Run' with a Map from position (0, 1, ...) to argument.
+	public Object RunPluginArgs(String pluginNiceName, String tag, Object[] args) {
+		try {
+			return runPlugin(pluginNiceName, tag, null, args == null ? new Object[0] : args);
+		} catch (Exception e) {
+			// Already logged
+			return null;
+		}
+	}
+	
+	private static anywheresoftware.b4a.objects.collections.Map argsToParams(Object[] args) {
+		anywheresoftware.b4a.objects.collections.Map params = new anywheresoftware.b4a.objects.collections.Map();
+		params.Initialize();
+		for (int i=0; i<args.length; i++) {
+			params.Put(i, args[i]);
+		}
+		return params;
+	}
+	
+	// Runs the plugin on the async executor and raises PluginCompleted(TaskId, NiceName, Success, Result)
+	// when it is done. Returns the TaskId.
+	public int RunPluginAsync(String pluginNiceName, String tag, anywheresoftware.b4a.objects.collections.Map params) {
+		final int taskId = asyncTaskIds.incrementAndGet();
+		submitPlugin(pluginNiceName, tag, params).whenComplete((result, error) -> {
+			_ba.raiseEventFromDifferentThread(this, null, 0, _event + "_plugincompleted", false, new Object[] {taskId, pluginNiceName, error == null, error == null ? result : null});
+		});
+		return taskId;
+	}
+	
+	// Sets the executor used by RunPluginAsync. With maxThreads <= 0 virtual threads are used when
+	// the JVM supports them (JDK 21+), otherwise one thread per available processor.
+	public void SetAsyncExecutor(int maxThreads) {
+		ExecutorService old = asyncExecutor;
+		asyncExecutor = createAsyncExecutor(maxThreads);
+		if (old != null) {
+			// Calls already submitted still run to completion
+			old.shutdown();
+		}
+	}
+	
+	// Limits the number of asynchronous calls of one plugin running at the same time.
+	// Use 0 to remove the limit.
+	public void SetPluginConcurrencyLimit(String pluginNiceName, int maxConcurrent) {
+		if (maxConcurrent <= 0) {
+			lanes.remove(niceNameKey(pluginNiceName));
+		} else {
+			lanes.put(niceNameKey(pluginNiceName), new PluginLane(maxConcurrent));
+		}
+	}
+	
+	protected CompletableFuture<Object> submitPlugin(String pluginNiceName, String tag, anywheresoftware.b4a.objects.collections.Map params) {
+		return submitTask(pluginNiceName, () -> runPlugin(pluginNiceName, tag, params, null));
+	}
+	
+	// Runs call on the async executor, honoring the concurrency limit of the plugin
+	private CompletableFuture<Object> submitTask(String pluginNiceName, Callable<Object> call) {
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		PluginLane lane = pluginNiceName == null ? null : lanes.get(niceNameKey(pluginNiceName));
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					result.complete(call.call());
+				} catch (Throwable e) {
+					result.completeExceptionally(e);
+				} finally {
+					if (lane != null) {
+						releaseLane(lane);
+					}
+				}
+			}
+		};
+		if (lane == null || lane.tryStart(task)) {
+			if (!executeAsync(task, result) && lane != null) {
+				// The task never runs, so its slot goes to the next waiting call
+				releaseLane(lane);
+			}
+		}
+		return result;
+	}
+	
+	private void releaseLane(PluginLane lane) {
+		Runnable next = lane.finish();
+		if (next != null) {
+			executeAsync(next, null);
+		}
+	}
+	
+	// Returns false if the task was rejected and did not run
+	private boolean executeAsync(Runnable task, CompletableFuture<Object> result) {
+		ExecutorService executor = asyncExecutor;
+		if (executor == null || executor.isShutdown()) {
+			synchronized (this) {
+				if (asyncExecutor == null || asyncExecutor.isShutdown()) {
+					asyncExecutor = createAsyncExecutor(0);
+				}
+				executor = asyncExecutor;
+			}
+		}
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			BA.Log("Failed to schedule asynchronous plugin call: " + e.getMessage());
+			if (result != null) {
+				result.completeExceptionally(e);
+				return false;
+			}
+			// A queued lane task, run it on this thread rather than losing it
+			task.run();
+			return true;
+		}
+	}
+	
+	private ExecutorService createAsyncExecutor(int maxThreads) {
+		if (maxThreads <= 0) {
+			try {
+				ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				BA.Log("Asynchronous plugin calls use virtual threads");
+				return virtual;
+			} catch (ReflectiveOperationException e) {
+				// Not available before JDK 21
+			}
+			maxThreads = Runtime.getRuntime().availableProcessors();
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		BA.Log("Asynchronous plugin calls use a pool of " + maxThreads + " threads");
+		return Executors.newFixedThreadPool(maxThreads, r -> {
+			Thread thread = new Thread(r, "ABPlugin-Async-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	// Runs all invocations (a List of ABPluginInvocation) in parallel on the async executor and waits
+	// for them. Returns the results in the same order, with Null for calls that failed.
+	public anywheresoftware.b4a.objects.collections.List RunPluginsBatch(anywheresoftware.b4a.objects.collections.List invocations) {
+		int count = invocations.getSize();
+		// Resolve everything against one snapshot
+		PluginRegistry snapshot = registry;
+		List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>(count);
+		for (int i=0; i<count; i++) {
+			ABPluginInvocation inv = (ABPluginInvocation) invocations.Get(i);
+			ABPluginDefinition def = inv.NiceName == null ? null : snapshot.pluginsByNiceName.get(niceNameKey(inv.NiceName));
+			if (def == null) {
+				BA.Log("No plugin found with name: '" + inv.NiceName + "'");
+				futures.add(null);
+				continue;
+			}
+			futures.add(submitTask(inv.NiceName, () -> invokeAcquired(acquireResolved(def), inv.Tag, inv.Params, null)));
+		}
+		
 		anywheresoftware.b4a.objects.collections.List ret = new anywheresoftware.b4a.objects.collections.List();
 		ret.Initialize();
-		pluginsLock.readLock().lock();
-		try {
-			for (Entry<String,ABPluginDefinition> entry : plugins.entrySet()) {
-				ret.Add(entry.getValue().NiceName);
-			}
-		} finally {
-			pluginsLock.readLock().unlock();
+		for (CompletableFuture<Object> f : futures) {
+			ret.Add(f == null ? null : awaitResult(f));
 		}
 		return ret;
 	}
 	
-	Runnable runnable = new Runnable() {
-	    public void run() {
-	    	if (mIsRunning && !mPluginIsRunning) {
-	    		mIsLoading=true;
-	    		Map<String, Boolean> toRemove = new LinkedHashMap<String,Boolean>();
-				List<String> toAdd = new ArrayList<String>();
-				
-				// Get plugins to remove
-				pluginsLock.readLock().lock();
-				try {
-					for (Entry<String,ABPluginDefinition> entry: plugins.entrySet()) {
-						toRemove.put(entry.getKey(), true);
-					}
-				} finally {
-					pluginsLock.readLock().unlock();
-				}
-				
-				boolean NeedsReload=false;
-				File dh = new File(pluginsDir);
-				if (!dh.exists() || !dh.isDirectory()) {
-					BA.Log("Invalid plugins directory: " + pluginsDir);
-					mIsLoading=false;
-					return;
-				}
-				
-				File[] files = dh.listFiles();
-				if (files == null) {
-					BA.Log("Failed to list files in plugins directory: " + pluginsDir);
-					mIsLoading=false;
-					return;
-				}
-				
-				for (File f: files) {
-					if (f.getName().endsWith(".jar")) {
-						String pluginName = f.getName().substring(0, f.getName().length()-4).toLowerCase();
-						toRemove.remove(pluginName);
-						
-						// Check if plugin needs update
-						boolean needsUpdate = false;
-						pluginsLock.readLock().lock();
-						try {
-							if (!plugins.containsKey(pluginName)) {
-								toAdd.add(f.getAbsolutePath());
-							} else {
-								ABPluginDefinition def = plugins.get(pluginName);
-								if (f.lastModified() != def.lastModified) {
-									needsUpdate = true;
-								}
-							}
-						} finally {
-							pluginsLock.readLock().unlock();
-						}
-						
-						if (needsUpdate) {
-							toRemove.put(pluginName, true);
-						}
-					}
-				}
-				
-				// Process plugins to remove
-				if (!toRemove.isEmpty()) {
-					BA.Log("Reloading plugins due to updates: " + toRemove.keySet());
-					pluginsLock.writeLock().lock();
-					try {
-						plugins.clear();
-					} finally {
-						pluginsLock.writeLock().unlock();
-					}
-					toAdd.clear();
-					for (File f: files) {
-						if (f.getName().endsWith(".jar")) {
-							toAdd.add(f.getAbsolutePath());
-						}
-					}
-				}
-				
-				boolean Added = false;
-				for (int i=0; i<toAdd.size(); i++) {
-					File f = new File(toAdd.get(i));
-					if (!f.exists() || !f.canRead()) {
-						BA.Log("Cannot read JAR file: " + f.getAbsolutePath());
-						continue;
-					}
-					
-					ABPluginDefinition def = new ABPluginDefinition();
-					def.lastModified = f.lastModified();
-					if (loadJarFile(pluginsDir, f, parentClassLoader, def)) {
-						if (RunInitialize(def)) {
-							String niceName = innerGetNiceName(def);
-							if (niceName != null && !niceName.isEmpty()) {
-								def.NiceName = niceName;
-								pluginsLock.writeLock().lock();
-								try {
-									plugins.put(def.Name.toLowerCase(), def);
-								} finally {
-									pluginsLock.writeLock().unlock();
-								}
-								Added = true;
-								BA.Log("Successfully loaded plugin: " + def.NiceName);
-							} else {
-								BA.Log("Plugin returned empty NiceName: " + def.Name);
-							}
-						}
-					}
-				}
-				
-				if (NeedsReload || Added) {
-					BA.Log("Plugins changed, raising event");
-					_ba.raiseEvent(this, _event + "_pluginschanged", new Object[] {});
-				}
-				mIsLoading=false;
+	// Runs the plugins one after another, the result of each plugin is passed as Params to the next one.
+	// A result that is not a Map is passed on as a Map with a single "Result" entry.
+	// Returns the result of the last plugin, or Null if a plugin is missing or fails.
+	public Object RunPluginsPipeline(anywheresoftware.b4a.objects.collections.List pluginNiceNames, String tag, anywheresoftware.b4a.objects.collections.Map params) {
+		int count = pluginNiceNames.getSize();
+		PluginRegistry snapshot = registry;
+		ABPluginDefinition[] defs = new ABPluginDefinition[count];
+		for (int i=0; i<count; i++) {
+			String niceName = (String) pluginNiceNames.Get(i);
+			defs[i] = niceName == null ? null : snapshot.pluginsByNiceName.get(niceNameKey(niceName));
+			if (defs[i] == null) {
+				BA.Log("No plugin found with name: '" + niceName + "', pipeline not started");
+				return null;
 			}
 		}
-	};
+		
+		Object result = null;
+		for (int i=0; i<count; i++) {
+			try {
+				result = invokeAcquired(acquireResolved(defs[i]), tag, params, null);
+			} catch (Exception e) {
+				// Already logged
+				return null;
+			}
+			if (i < count-1) {
+				params = toParams(result);
+			}
+		}
+		return result;
+	}
 	
-	private boolean RunInitialize(ABPluginDefinition def) {
-		java.lang.reflect.Method m;
+	@SuppressWarnings("unchecked")
+	private static anywheresoftware.b4a.objects.collections.Map toParams(Object result) {
+		if (result instanceof anywheresoftware.b4a.objects.collections.Map) {
+			return (anywheresoftware.b4a.objects.collections.Map) result;
+		}
+		anywheresoftware.b4a.objects.collections.Map params = new anywheresoftware.b4a.objects.collections.Map();
+		if (result instanceof anywheresoftware.b4a.objects.collections.Map.MyMap) {
+			params.setObject((anywheresoftware.b4a.objects.collections.Map.MyMap) result);
+		} else if (result instanceof Map) {
+			params.Initialize();
+			params.getObject().putAll((Map<Object, Object>) result);
+		} else {
+			params.Initialize();
+			params.Put("Result", result);
+		}
+		return params;
+	}
+	
+	private static Object awaitResult(Future<Object> f) {
 		try {
-			m = def.objectClass.getMethod("_initialize", new Class[]{anywheresoftware.b4a.BA.class});
-			m.setAccessible(true);
-			Object result = m.invoke(def.object, new Object[] {_ba});
-			if (result instanceof String) {
-				String returnedKey = (String) result;
-				// Use equals method instead of == to compare strings
-				boolean keyMatch = (AllowedKey != null && AllowedKey.equals(returnedKey));
-				if (!keyMatch) {
-					BA.Log("Plugin initialization failed: Invalid key for " + def.Name);
-				}
-				return keyMatch;
-			} else {
-				BA.Log("Plugin initialization returned non-string value for " + def.Name);
-				return false;
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Already logged
+		}
+		return null;
+	}
+	
+	// Counts a call on a definition resolved earlier from a snapshot. Falls back to a fresh lookup
+	// when the loader replaced the plugin in the meantime.
+	private ABPluginDefinition acquireResolved(ABPluginDefinition def) {
+		def.inFlight.incrementAndGet();
+		if (!def.retired) {
+			return def;
+		}
+		def.inFlight.decrementAndGet();
+		ABPluginDefinition current = acquirePlugin(def.NiceName);
+		if (current == null) {
+			BA.Log("Plugin was removed: '" + def.NiceName + "'");
+			throw new IllegalStateException("Plugin was removed: '" + def.NiceName + "'");
+		}
+		return current;
+	}
+	
+	// Looks up the plugin and counts the call as in flight. The caller must decrement inFlight when done.
+	private ABPluginDefinition acquirePlugin(String pluginNiceName) {
+		String key = niceNameKey(pluginNiceName);
+		while (true) {
+			ABPluginDefinition def = registry.pluginsByNiceName.get(key);
+			if (def == null) {
+				return null;
 			}
-		} catch (NoSuchMethodException e) {
-			BA.Log("_initialize method not found in plugin: " + def.Name + " - " + e.getMessage());
-		} catch (SecurityException e) {
-			BA.Log("Security error accessing initialization method for " + def.Name + " - " + e.getMessage());
-		} catch (IllegalAccessException e) {
-			BA.Log("Illegal access to initialization method for " + def.Name + " - " + e.getMessage());
-		} catch (IllegalArgumentException e) {
-			BA.Log("Illegal argument in initialization for " + def.Name + " - " + e.getMessage());
-		} catch (InvocationTargetException e) {
-			BA.Log("Plugin initialization exception for " + def.Name + " - " + e.getTargetException().getMessage());
+			def.inFlight.incrementAndGet();
+			if (!def.retired) {
+				return def;
+			}
+			// The loader retired it between the lookup and the increment. It publishes the new
+			// registry before retiring, so the next lookup sees the replacement (or nothing).
+			def.inFlight.decrementAndGet();
 		}
-		return false;
 	}
 	
-	public Object RunPlugin(String pluginNiceName, String tag, anywheresoftware.b4a.objects.collections.Map params) {
-		if (pluginNiceName == null || pluginNiceName.isEmpty()) {
-			BA.Log("Empty plugin name provided");
-			return null;
+	// Called by the loader after publishing a registry without this plugin. Waits until calls that
+	// already started on it have finished, other plugins are not affected.
+	private void retirePlugin(ABPluginDefinition def) {
+		def.retired = true;
+		packageIndex.remove(def);
+		draining.add(def);
+		drainPlugin(def, System.currentTimeMillis() + DrainTimeoutMS);
+	}
+	
+	// Closes the class loader once the running calls have finished. While there are any, it checks again
+	// later on the loader thread, so a slow plugin never holds up the scans.
+	private void drainPlugin(ABPluginDefinition def, long deadline) {
+		if (def.inFlight.get() == 0) {
+			closeClassLoader(def);
+			draining.remove(def);
+			if (!replacedSharedLibraries.isEmpty()) {
+				closeReplacedSharedLibraries();
+			}
+			return;
 		}
-		
-		mPluginIsRunning=true;
-		ABPluginDefinition def=null;
-		pluginsLock.readLock().lock();
+		if (System.currentTimeMillis() > deadline) {
+			BA.Log("Plugin " + def.Name + " still has " + def.inFlight.get() + " running calls after " + DrainTimeoutMS + "ms, unloading anyway");
+			abandonClassLoader(def);
+			return;
+		}
+		ScheduledExecutorService loader = service;
 		try {
-			for (Entry<String,ABPluginDefinition> entry: plugins.entrySet()) {
-				if (entry.getValue().NiceName != null && entry.getValue().NiceName.equalsIgnoreCase(pluginNiceName)) {
-					def = entry.getValue();
-					break;
+			if (loader != null && !loader.isShutdown()) {
+				loader.schedule(() -> drainPlugin(def, deadline), DRAIN_CHECK_MS, TimeUnit.MILLISECONDS);
+				return;
+			}
+		} catch (RejectedExecutionException e) {
+			// Stopping, handled below
+		}
+		abandonClassLoader(def);
+	}
+	
+	// Leaves the class loader open for the calls still running, but does track it. Its shared
+	// libraries stay open as well.
+	private void abandonClassLoader(ABPluginDefinition def) {
+		draining.remove(def);
+		if (def.sharedLibraries != null) {
+			replacedSharedLibraries.remove(def.sharedLibraries);
+		}
+		if (def.classLoader != null) {
+			if (def.sharedJar == null || SharedJars.release(def.sharedJar)) {
+				classLoaderTracker.track(def.classLoader, def.Name);
+			}
+			def.classLoader = null;
+			def.sharedJar = null;
+		}
+	}
+	
+	private void closeClassLoader(ABPluginDefinition def) {
+		if (def.classLoader != null) {
+			if (def.sharedJar != null) {
+				boolean last = SharedJars.release(def.sharedJar);
+				def.sharedJar = null;
+				if (!last) {
+					// Still used by another ABPlugin instance
+					def.classLoader = null;
+					return;
 				}
 			}
-		} finally {
-			pluginsLock.readLock().unlock();
+			classLoaderTracker.track(def.classLoader, def.Name);
+			try {
+				def.classLoader.close();
+			} catch (IOException e) {
+				BA.Log("Error closing class loader of " + def.Name + ": " + e.getMessage());
+			}
+			def.classLoader = null;
 		}
-		
-		if (def==null) {
-			BA.Log("No plugin found with name: '" + pluginNiceName + "'");
-			mPluginIsRunning=false;
-			return null;
+	}
+	
+	// Calls 'Sub Warmup' of the plugin WarmupIterations times before it is published, so the first real
+	// calls do not run on cold code
+	private void warmUp(ABPluginDefinition def) {
+		java.lang.reflect.Method m = def.warmupMethod;
+		int iterations = WarmupIterations;
+		if (m == null || iterations <= 0) {
+			return;
 		}
-		
-		java.lang.reflect.Method m;
+		long start = System.nanoTime();
 		try {
-			m = GetMethod(def, "_run");
-			if (m==null) {
-				BA.Log("'Sub Run(Tag As String, Params As Map) As Object' not found in plugin: " + def.Name);
-				mPluginIsRunning=false;
-				return "";
-			}
-			m.setAccessible(true);
-			Object ret = m.invoke(def.object, new Object[] {tag, params});
-			mPluginIsRunning=false;
-			return ret;
-		} catch (SecurityException e) {
-			BA.Log("Security error running plugin " + def.Name + " - " + e.getMessage());
-		} catch (IllegalAccessException e) {
-			BA.Log("Illegal access to run method for plugin " + def.Name + " - " + e.getMessage());
-		} catch (IllegalArgumentException e) {
-			BA.Log("Illegal argument running plugin " + def.Name + " - " + e.getMessage());
+			for (int i=0; i<iterations; i++) {
+				m.invoke(def.object, new Object[] {});
+			}
+			BA.Log("Warmed up plugin " + def.NiceName + " with " + iterations + " calls in " + (System.nanoTime() - start) / 1000000 + "ms");
+		} catch (IllegalAccessException | IllegalArgumentException e) {
+			BA.Log("Error calling Warmup of " + def.Name + " - " + e.getMessage());
 		} catch (InvocationTargetException e) {
-			BA.Log("Exception running plugin " + def.Name + " - " + e.getTargetException().getMessage());
+			BA.Log("Exception calling Warmup of " + def.Name + " - " + e.getTargetException().getMessage());
 		}
-		mPluginIsRunning=false;
-		return null;
+	}
+	
+	// A plugin declares its results cacheable with 'Sub IsCacheable As Boolean' returning True
+	private boolean innerIsCacheable(ABPluginDefinition def) {
+		java.lang.reflect.Method m = def.isCacheableMethod;
+		if (m == null) {
+			return false;
+		}
+		try {
+			return Boolean.TRUE.equals(m.invoke(def.object, new Object[] {}));
+		} catch (IllegalAccessException | IllegalArgumentException e) {
+			BA.Log("Error calling IsCacheable of " + def.Name + " - " + e.getMessage());
+		} catch (InvocationTargetException e) {
+			BA.Log("Exception calling IsCacheable of " + def.Name + " - " + e.getTargetException().getMessage());
+		}
+		return false;
+	}
+	
+	static String niceNameKey(String niceName) {
+		return niceName.toLowerCase(BA.cul);
 	}
 	
 	protected String innerGetNiceName(ABPluginDefinition def) {
-		mPluginIsRunning=true;
-		java.lang.reflect.Method m;
+		java.lang.reflect.Method m = def.getNiceNameMethod;
+		if (m==null) {
+			BA.Log("'Sub GetNiceName() As String' not found in plugin: " + def.Name + ", using filename as fallback");
+			return def.Name; // Use filename as fallback
+		}
 		try {
-			m = GetMethod(def, "_getnicename");
-			if (m==null) {
-				BA.Log("'Sub GetNiceName() As String' not found in plugin: " + def.Name + ", using filename as fallback");
-				mPluginIsRunning=false;
-				return def.Name; // Use filename as fallback
-			}
-			m.setAccessible(true);
 			Object ret = m.invoke(def.object, new Object[] {});
-			mPluginIsRunning=false;
 			return (ret instanceof String) ? (String)ret : def.Name;
-		} catch (SecurityException e) {
-			BA.Log("Security error getting nice name for " + def.Name + " - " + e.getMessage());
 		} catch (IllegalAccessException e) {
 			BA.Log("Illegal access to getnicename method for " + def.Name + " - " + e.getMessage());
 		} catch (IllegalArgumentException e) {
@@ -309,10 +1639,69 @@ public class ABPlugin {
 		} catch (InvocationTargetException e) {
 			BA.Log("Exception getting nice name for " + def.Name + " - " + e.getTargetException().getMessage());
 		}
-		mPluginIsRunning=false;
 		return def.Name; // Return filename on error
 	}
 	
+	// Returns a Map with the class loader state:
+	// Loaded - number of loaded plugins, LoadedClasses - classes defined by their loaders,
+	// Unloaded - loaders of unloaded plugins that are still reachable, UnloadedClasses - classes they retain,
+	// UnloadedPlugins - a List with a Map (Name, Classes, UnloadedMS) per reachable unloaded loader.
+	// SharedJars - jars loaded once and shared by the instances in this process that enabled sharing.
+	// Loaders that stay in UnloadedPlugins after several garbage collections are likely leaking.
+	public anywheresoftware.b4a.objects.collections.Map GetClassLoaderStats() {
+		int loadedClasses = 0;
+		PluginRegistry current = registry;
+		for (ABPluginDefinition def : current.plugins.values()) {
+			PluginClassLoader loader = def.classLoader;
+			if (loader != null) {
+				loadedClasses += loader.getDefinedClassCount();
+			}
+		}
+		
+		anywheresoftware.b4a.objects.collections.List unloadedPlugins = new anywheresoftware.b4a.objects.collections.List();
+		unloadedPlugins.Initialize();
+		int unloadedClasses = 0;
+		long now = System.currentTimeMillis();
+		List<ClassLoaderTracker.Unloaded> reachable = classLoaderTracker.reachable();
+		for (ClassLoaderTracker.Unloaded u : reachable) {
+			anywheresoftware.b4a.objects.collections.Map m = new anywheresoftware.b4a.objects.collections.Map();
+			m.Initialize();
+			m.Put("Name", u.name);
+			m.Put("Classes", u.classCount);
+			m.Put("UnloadedMS", now - u.unloadedAt);
+			unloadedPlugins.Add(m.getObject());
+			unloadedClasses += u.classCount;
+		}
+		
+		anywheresoftware.b4a.objects.collections.Map ret = new anywheresoftware.b4a.objects.collections.Map();
+		ret.Initialize();
+		ret.Put("Loaded", current.plugins.size());
+		ret.Put("LoadedClasses", loadedClasses);
+		ret.Put("Unloaded", reachable.size());
+		ret.Put("UnloadedClasses", unloadedClasses);
+		ret.Put("UnloadedPlugins", unloadedPlugins.getObject());
+		ret.Put("SharedJars", SharedJars.size());
+		return ret;
+	}
+	
+	// Looks up the plugin subs once at load time, so invoking them later needs no reflective lookup
+	protected void ResolveMethods(ABPluginDefinition def) {
+		try {
+			def.initializeMethod = def.objectClass.getMethod("_initialize", new Class<?>[]{anywheresoftware.b4a.BA.class});
+			def.initializeMethod.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			def.initializeMethod = null;
+		} catch (SecurityException e) {
+			BA.Log("Security error accessing initialization method for " + def.Name + " - " + e.getMessage());
+			def.initializeMethod = null;
+		}
+		def.getNiceNameMethod = GetMethod(def, "_getnicename");
+		def.runMethod = GetMethod(def, "_run");
+		def.runArgsMethod = GetMethod(def, "_runargs");
+		def.isCacheableMethod = GetMethod(def, "_iscacheable");
+		def.warmupMethod = GetMethod(def, "_warmup");
+	}
+	
 	protected java.lang.reflect.Method GetMethod(ABPluginDefinition def, String methodName) {
 		if (def == null || def.objectClass == null) {
 			BA.Log("Invalid plugin definition or class when looking for method: " + methodName);
@@ -353,31 +1742,197 @@ public class ABPlugin {
 			return;
 		}
 		
-		this.CheckForNewIntervalMS = checkForNewIntervalMS;
+		primaryRoot.checkIntervalMS = checkForNewIntervalMS;
+		primaryRoot.watch = false;
+		startRoots();
+	}
+	
+	// Reacts to create/modify/delete events of .jar files instead of polling. Events arriving within
+	// coalesceMS of each other result in a single scan. If the file system does not support watching
+	// the plugins directory, the polling loop is used with fallbackIntervalMS. While watching, the
+	// directory is still checked every fallbackIntervalMS, as network and shared mounts accept a watch
+	// but never report changes made on other machines.
+	// Plugin roots added with watch True use the same coalesceMS.
+	public void StartWatching(long coalesceMS, long fallbackIntervalMS) {
+		if (coalesceMS < 0 || fallbackIntervalMS <= 0) {
+			BA.Log("Invalid settings for plugin watching: coalesce=" + coalesceMS + "ms, fallback interval=" + fallbackIntervalMS + "ms");
+			return;
+		}
+		
+		this.WatchCoalesceMS = coalesceMS;
+		primaryRoot.checkIntervalMS = fallbackIntervalMS;
+		primaryRoot.watch = true;
+		startRoots();
+	}
+	
+	private synchronized void startRoots() {
 		try {
-			if (service != null) {
-				service.shutdown();
-				service.awaitTermination(500, TimeUnit.MILLISECONDS);
-			}
-			service = Executors.newSingleThreadScheduledExecutor(r -> {
-				Thread thread = new Thread(r, "ABPlugin-Loader");
-				thread.setDaemon(true);
-				return thread;
-			});
-			future = service.scheduleAtFixedRate(runnable, 0, checkForNewIntervalMS, TimeUnit.MILLISECONDS);
+			restartService();
+			// Set before scheduling, the first scan runs immediately and skips itself otherwise
 			mIsRunning = true;
-			BA.Log("Plugin system started with check interval: " + checkForNewIntervalMS + "ms");
+			for (PluginRoot root : roots) {
+				startRoot(root);
+			}
 		} catch (Exception e) {
 			BA.Log("Failed to start plugin system: " + e.getMessage());
 		}
 	}
 	
+	// Schedules the scans of one root according to its own settings
+	private synchronized void startRoot(PluginRoot root) {
+		if (root.watch && startWatcher(root)) {
+			requestScan(root, 0);
+			startSafetyPoll(root);
+			BA.Log("Plugin system started watching: " + root.dir + ", checking every " + root.checkIntervalMS + "ms");
+		} else if (root.checkIntervalMS > 0) {
+			root.future = service.scheduleAtFixedRate(root.scan, 0, root.checkIntervalMS, TimeUnit.MILLISECONDS);
+			BA.Log("Plugin system started with check interval: " + root.checkIntervalMS + "ms" + (root.watch ? " (watching not supported)" : "") + " for " + root.dir);
+		} else {
+			root.future = service.submit(root.scan);
+			BA.Log("Plugin system loaded " + root.dir + " once");
+		}
+	}
+	
+	private void restartService() throws InterruptedException {
+		for (PluginRoot root : roots) {
+			stopWatcher(root);
+		}
+		if (service != null) {
+			service.shutdown();
+			service.awaitTermination(500, TimeUnit.MILLISECONDS);
+		}
+		service = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ABPlugin-Loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	private boolean startWatcher(PluginRoot root) {
+		Path dir = Paths.get(root.dir);
+		WatchService ws = null;
+		try {
+			ws = dir.getFileSystem().newWatchService();
+			dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException | UnsupportedOperationException | SecurityException e) {
+			BA.Log("Cannot watch plugins directory: " + root.dir + " - " + e.getMessage());
+			if (ws != null) {
+				try {
+					ws.close();
+				} catch (IOException eClose) {
+					BA.Log("Failed to close plugins directory watcher: " + eClose.getMessage());
+				}
+			}
+			return false;
+		}
+		
+		final WatchService watching = ws;
+		root.watchService = watching;
+		root.watching = true;
+		Thread thread = new Thread(() -> watchLoop(root, watching), "ABPlugin-Watcher");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+	
+	private void stopWatcher(PluginRoot root) {
+		root.watching = false;
+		if (root.watchService != null) {
+			try {
+				// Closing the service also ends the watcher thread blocked in take()
+				root.watchService.close();
+			} catch (IOException e) {
+				BA.Log("Failed to close plugins directory watcher: " + e.getMessage());
+			}
+			root.watchService = null;
+		}
+	}
+	
+	private void watchLoop(PluginRoot root, WatchService ws) {
+		while (true) {
+			WatchKey key;
+			try {
+				key = ws.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			
+			boolean jarChanged = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				// On overflow events were lost, so rescan to be safe
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW || event.context().toString().endsWith(".jar") || event.context().toString().endsWith(PluginPack.EXTENSION)) {
+					jarChanged = true;
+				}
+			}
+			if (jarChanged) {
+				requestScan(root, WatchCoalesceMS);
+			}
+			
+			if (!key.reset()) {
+				// The directory itself is gone or no longer accessible
+				if (ws == root.watchService) {
+					BA.Log("Plugins directory " + root.dir + " can no longer be watched, falling back to check interval: " + root.checkIntervalMS + "ms");
+					fallBackToPolling(root);
+				}
+				return;
+			}
+		}
+	}
+	
+	// Slow scans of a watched root, for changes the watch service does not report
+	private synchronized void startSafetyPoll(PluginRoot root) {
+		if (root.safetyPoll != null) {
+			root.safetyPoll.cancel(false);
+		}
+		root.safetyPoll = service.scheduleAtFixedRate(root.scan, root.checkIntervalMS, root.checkIntervalMS, TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized void fallBackToPolling(PluginRoot root) {
+		stopWatcher(root);
+		if (mIsRunning && service != null && !service.isShutdown()) {
+			if (root.future != null) {
+				root.future.cancel(false);
+			}
+			if (root.safetyPoll != null) {
+				root.safetyPoll.cancel(false);
+			}
+			root.future = service.scheduleAtFixedRate(root.scan, 0, root.checkIntervalMS, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	// (Re)schedules a single scan of the root after delayMS, so a burst of events only triggers one scan
+	private synchronized void requestScan(PluginRoot root, long delayMS) {
+		if (!root.watching || service == null || service.isShutdown()) {
+			return;
+		}
+		if (root.future != null && !root.future.isDone()) {
+			root.future.cancel(false);
+		}
+		try {
+			root.future = service.schedule(root.scan, delayMS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Service is shutting down, nothing to schedule
+		}
+	}
+	
+	// Scans a root on the loader thread as soon as possible, outside its own schedule
+	private void scanSoon(PluginRoot root) {
+		if (mIsRunning && service != null && !service.isShutdown()) {
+			try {
+				service.execute(root.scan);
+			} catch (RejectedExecutionException e) {
+				// Service is shutting down, nothing to schedule
+			}
+		}
+	}
+	
 	public void Stop() {
+		for (PluginRoot root : roots) {
+			stopWatcher(root);
+		}
 		if (mIsRunning) {
 			mIsRunning = false;
-			if (future != null) {
-				future.cancel(true);
-			}
+			cancelScans();
 			if (service != null) {
 				service.shutdown();
 				try {
@@ -388,40 +1943,72 @@ public class ABPlugin {
 					BA.Log("Thread interrupted while waiting for plugin service termination: " + e.getMessage());
 				}
 			}
+			if (asyncExecutor != null) {
+				asyncExecutor.shutdown();
+			}
+			synchronized (this) {
+				for (PluginRoot root : roots) {
+					if (root.loadPool != null) {
+						root.loadPool.shutdown();
+					}
+				}
+				if (callPool != null) {
+					// Abandoned calls keep their daemon threads until they end
+					callPool.shutdown();
+				}
+			}
 			BA.Log("Plugin system stopped");
 		}
 	}
 	
+	private void cancelScans() {
+		for (PluginRoot root : roots) {
+			if (root.future != null) {
+				root.future.cancel(true);
+			}
+			if (root.safetyPoll != null) {
+				root.safetyPoll.cancel(true);
+			}
+		}
+	}
+	
 	public void Pauze() {
 		if (mIsRunning) {
 			mIsRunning = false;
-			if (future != null) {
-				future.cancel(true);
-			}
+			cancelScans();
 			BA.Log("Plugin system paused");
 		}
 	}
 	
 	public void Resume() {
 		if (!mIsRunning && service != null && !service.isShutdown()) {
-			future = service.scheduleAtFixedRate(runnable, 0, CheckForNewIntervalMS, TimeUnit.MILLISECONDS);
 			mIsRunning = true;
+			synchronized (this) {
+				for (PluginRoot root : roots) {
+					if (root.watching) {
+						// Changes made while paused were ignored, so do a full scan first
+						requestScan(root, 0);
+						startSafetyPoll(root);
+					} else if (root.checkIntervalMS > 0) {
+						root.future = service.scheduleAtFixedRate(root.scan, 0, root.checkIntervalMS, TimeUnit.MILLISECONDS);
+					} else {
+						root.future = service.submit(root.scan);
+					}
+				}
+			}
 			BA.Log("Plugin system resumed");
 		} else {
 			BA.Log("Cannot resume plugin system - it's either running or shutdown");
 		}
 	}
 	
-	private boolean loadJarFile(String directoryName, File pluginFile, ClassLoader parentClassLoader, ABPluginDefinition def) {
+	// knownClass is the plugin class found earlier for this exact jar, or null
+	private boolean loadJarFile(String directoryName, File pluginFile, ClassLoader parentClassLoader, ABPluginDefinition def, String knownClass) {
         URL url = null;
         try {
-            // More reliable URL construction
+            // A plain file URL, so the class loader opens its own copy of the jar. A jar: URL would go
+            // through the shared JarURLConnection cache and keep serving the replaced version.
             url = pluginFile.toURI().toURL();
-            // Ensure JAR URL format
-            String urlStr = url.toString();
-            if (!urlStr.endsWith("!/") && urlStr.endsWith(".jar")) {
-                url = new URL("jar:" + urlStr + "!/");
-            }
         } catch (MalformedURLException e) {
             BA.Log("Failed to create URL for JAR file: " + pluginFile.getAbsolutePath() + " - " + e.getMessage());
             return false;
@@ -437,30 +2024,52 @@ public class ABPlugin {
         }
         
         def.Name = pluginFile.getName().substring(0, pluginFile.getName().length()-4);
- 
-        // Collect classes from JAR file
-        List<String> classes = new ArrayList<>();
+        
+        // A plugin can name its class in the manifest, so the jar does not have to be searched for it
+        String declaredClass = null;
         try {
-            Enumeration<JarEntry> entries = jarFile.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
-                    continue;
+            Manifest manifest = jarFile.getManifest();
+            if (manifest != null) {
+                declaredClass = manifest.getMainAttributes().getValue(MANIFEST_PLUGIN_CLASS);
+                if (declaredClass != null && declaredClass.trim().isEmpty()) {
+                    declaredClass = null;
                 }
-                classes.add(entry.getName().replace(".class", "").replace('/', '.'));
+                def.cacheable = "true".equalsIgnoreCase(manifest.getMainAttributes().getValue(MANIFEST_CACHEABLE));
             }
-        } catch (Exception e) {
-            BA.Log("Error scanning JAR file contents: " + pluginFile.getAbsolutePath() + " - " + e.getMessage());
+        } catch (IOException e) {
+            BA.Log("Failed to read manifest of JAR file: " + pluginFile.getAbsolutePath() + " - " + e.getMessage());
+        }
+        if (declaredClass == null) {
+            declaredClass = knownClass;
+        }
+        // In lazy mode only the plugin class is loaded now, the class loader loads the rest on demand
+        boolean preload = !mLazyClassLoading;
+ 
+        // Collect classes from JAR file
+        List<String> classes = new ArrayList<>();
+        if (declaredClass == null || preload) {
             try {
-                jarFile.close();
-            } catch (IOException eClose) {
-                BA.Log("Failed to close JAR file after scanning error: " + eClose.getMessage());
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+                        continue;
+                    }
+                    classes.add(entry.getName().replace(".class", "").replace('/', '.'));
+                }
+            } catch (Exception e) {
+                BA.Log("Error scanning JAR file contents: " + pluginFile.getAbsolutePath() + " - " + e.getMessage());
+                try {
+                    jarFile.close();
+                } catch (IOException eClose) {
+                    BA.Log("Failed to close JAR file after scanning error: " + eClose.getMessage());
+                }
+                return false;
             }
-            return false;
         }
         
         // If no classes found, log warning
-        if (classes.isEmpty()) {
+        if (declaredClass == null && classes.isEmpty()) {
             BA.Log("No classes found in JAR file: " + pluginFile.getAbsolutePath());
             try {
                 jarFile.close();
@@ -471,21 +2080,28 @@ public class ABPlugin {
         }
         
         def.objectClass=null;
-        URLClassLoader classLoader = null;
+        PluginClassLoader classLoader = null;
         try {
             // Compatible with JDK9+, use system classloader when parentClassLoader is null
-            classLoader = new URLClassLoader(urls, parentClassLoader != null ? parentClassLoader : ClassLoader.getSystemClassLoader());
+            classLoader = new PluginClassLoader(urls, parentClassLoader != null ? parentClassLoader : ClassLoader.getSystemClassLoader());
             
             // Try to find main class (class matching JAR name)
             boolean foundMainClass = false;
             String mainClassName = null;
             
+            if (declaredClass != null) {
+                mainClassName = declaredClass.trim();
+                foundMainClass = true;
+            }
+            
             // First try exact match
-            for (String className : classes) {
-                if (className.toLowerCase().endsWith("." + def.Name.toLowerCase()) || className.equalsIgnoreCase(def.Name)) {
-                    mainClassName = className;
-                    foundMainClass = true;
-                    break;
+            if (!foundMainClass) {
+                for (String className : classes) {
+                    if (className.toLowerCase().endsWith("." + def.Name.toLowerCase()) || className.equalsIgnoreCase(def.Name)) {
+                        mainClassName = className;
+                        foundMainClass = true;
+                        break;
+                    }
                 }
             }
             
@@ -523,7 +2139,8 @@ public class ABPlugin {
             if (foundMainClass && mainClassName != null) {
                 try {
                     def.objectClass = classLoader.loadClass(mainClassName);
-                    def.object = def.objectClass.newInstance();
+                    def.object = def.objectClass.getDeclaredConstructor().newInstance();
+                    ResolveMethods(def);
                     BA.Log("Loaded plugin class: " + mainClassName);
                 } catch (Exception e) {
                     BA.Log("Failed to load or instantiate main class " + mainClassName + " - " + e.getMessage());
@@ -531,14 +2148,16 @@ public class ABPlugin {
             }
             
             // Load other classes to ensure they are available in class loader
-            for (String className : classes) {
-                try {
-                    if (!className.equals(mainClassName)) {
-                        classLoader.loadClass(className);
+            if (preload) {
+                for (String className : classes) {
+                    try {
+                        if (!className.equals(mainClassName)) {
+                            classLoader.loadClass(className);
+                        }
+                    } catch (ClassNotFoundException e) {
+                        BA.Log("Failed to preload class: " + className);
+                        // Continue loading other classes, don't stop due to single class loading failure
                     }
-                } catch (ClassNotFoundException e) {
-                    BA.Log("Failed to preload class: " + className);
-                    // Continue loading other classes, don't stop due to single class loading failure
                 }
             }
             
@@ -548,7 +2167,11 @@ public class ABPlugin {
         } finally {
             // Close resources
             try {
-                if (classLoader != null) {
+                if (def.objectClass != null) {
+                    // Stays open for the lifetime of the plugin, classes not loaded yet may still be needed.
+                    // Closed when the plugin is unloaded.
+                    def.classLoader = classLoader;
+                } else if (classLoader != null) {
                     // Compatible closing approach for JDK7+ and JDK9+
                     // In JDK9+, URLClassLoader directly implements Closeable interface
                     classLoader.close();
@@ -566,6 +2189,11 @@ public class ABPlugin {
             }
         }
         
+        if (def.objectClass != null) {
+            String pluginClass = def.objectClass.getName();
+            int dot = pluginClass.lastIndexOf('.');
+            def.packages = PackageIndex.packagesOf(classes, dot > 0 ? pluginClass.substring(0, dot) : "");
+        }
         return def.objectClass != null;
 	}
 }
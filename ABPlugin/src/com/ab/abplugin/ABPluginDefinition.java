@@ -1,5 +1,11 @@
 package com.ab.abplugin;
 
+import java.lang.reflect.Method;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import anywheresoftware.b4a.BA.Hide;
 
 @Hide
@@ -8,5 +14,37 @@ public class ABPluginDefinition {
 	protected Object object;
 	protected String Name="";
 	protected String NiceName="";
+	// For a plugin from a plugin pack, its fingerprint in the pack
 	protected long lastModified=0;
+	// The root the plugin was loaded from, its key in the registry and the path it was loaded from
+	protected PluginRoot root=null;
+	protected String key="";
+	protected String path="";
+	// Resolved once when the plugin is loaded
+	protected Method initializeMethod=null;
+	protected Method getNiceNameMethod=null;
+	protected Method runMethod=null;
+	protected Method runArgsMethod=null;
+	protected Method isCacheableMethod=null;
+	protected Method warmupMethod=null;
+	// Number of calls currently running on this plugin
+	protected final AtomicInteger inFlight = new AtomicInteger();
+	// Set once the plugin has been removed from the registry
+	protected volatile boolean retired=false;
+	// Open for the lifetime of the plugin, closed when it is unloaded
+	protected PluginClassLoader classLoader=null;
+	// The shared libraries loader that is the parent of classLoader, or null
+	protected URLClassLoader sharedLibraries=null;
+	// Set if the class loader is shared with other ABPlugin instances
+	protected SharedJars.Key sharedJar=null;
+	protected long loadNanos=0;
+	protected long initializeNanos=0;
+	// Shared with earlier and later versions of the same plugin
+	protected PluginStats stats=null;
+	// Packages bundled in the jar, apart from the one of the plugin class
+	protected Set<String> packages=Collections.emptySet();
+	protected boolean cacheable=false;
+	// Only set for cacheable plugins while the result cache is enabled
+	protected volatile PluginResultCache resultCache=null;
+	protected final PluginCircuitBreaker breaker = new PluginCircuitBreaker();
 }
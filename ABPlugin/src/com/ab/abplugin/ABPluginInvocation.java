@@ -0,0 +1,29 @@
+package com.ab.abplugin;
+
+import anywheresoftware.b4a.BA.ShortName;
+
+// One plugin call for ABPlugin.RunPluginsBatch
+@ShortName("ABPluginInvocation")
+public class ABPluginInvocation {
+	protected String NiceName="";
+	protected String Tag="";
+	protected anywheresoftware.b4a.objects.collections.Map Params=null;
+	
+	public void Initialize(String niceName, String tag, anywheresoftware.b4a.objects.collections.Map params) {
+		this.NiceName = niceName;
+		this.Tag = tag;
+		this.Params = params;
+	}
+	
+	public String getNiceName() {
+		return NiceName;
+	}
+	
+	public String getTag() {
+		return Tag;
+	}
+	
+	public anywheresoftware.b4a.objects.collections.Map getParams() {
+		return Params;
+	}
+}
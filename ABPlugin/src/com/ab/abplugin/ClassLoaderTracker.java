@@ -0,0 +1,49 @@
+package com.ab.abplugin;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps track of the class loaders of unloaded plugins until they are garbage collected. A loader
+// that stays reachable long after its plugin was unloaded usually means the plugin leaks, for
+// example through a thread it started or a static reference held by the host.
+class ClassLoaderTracker {
+	static class Unloaded extends PhantomReference<PluginClassLoader> {
+		final String name;
+		final int classCount;
+		final long unloadedAt;
+		
+		Unloaded(PluginClassLoader loader, ReferenceQueue<PluginClassLoader> queue, String name) {
+			super(loader, queue);
+			this.name = name;
+			this.classCount = loader.getDefinedClassCount();
+			this.unloadedAt = System.currentTimeMillis();
+		}
+	}
+	
+	private final ReferenceQueue<PluginClassLoader> queue = new ReferenceQueue<PluginClassLoader>();
+	// Holds the references themselves, otherwise they would be collected before being enqueued
+	private final Set<Unloaded> unloaded = ConcurrentHashMap.newKeySet();
+	
+	void track(PluginClassLoader loader, String name) {
+		expunge();
+		unloaded.add(new Unloaded(loader, queue, name));
+	}
+	
+	// Returns the unloaded loaders that are still reachable
+	List<Unloaded> reachable() {
+		expunge();
+		return new ArrayList<Unloaded>(unloaded);
+	}
+	
+	private void expunge() {
+		Reference<? extends PluginClassLoader> ref;
+		while ((ref = queue.poll()) != null) {
+			unloaded.remove(ref);
+		}
+	}
+}
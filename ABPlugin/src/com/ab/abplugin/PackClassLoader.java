@@ -0,0 +1,86 @@
+package com.ab.abplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+
+// Class loader of one plugin in a plugin pack. Classes are defined from the entries copied from the pack,
+// resources are served from it through abpack: URLs.
+class PackClassLoader extends PluginClassLoader {
+	static {
+		ClassLoader.registerAsParallelCapable();
+	}
+	
+	private final String pluginName;
+	private final Map<String, ByteBuffer> entries;
+	private final URLStreamHandler handler = new URLStreamHandler() {
+		@Override
+		protected URLConnection openConnection(URL url) throws IOException {
+			final ByteBuffer data = entries.get(url.getPath().substring(url.getPath().indexOf('/', 1) + 1));
+			if (data == null) {
+				throw new IOException("Not in plugin pack: " + url);
+			}
+			return new URLConnection(url) {
+				@Override
+				public void connect() {
+				}
+				
+				@Override
+				public InputStream getInputStream() {
+					byte[] bytes = new byte[data.remaining()];
+					data.duplicate().get(bytes);
+					return new ByteArrayInputStream(bytes);
+				}
+				
+				@Override
+				public int getContentLength() {
+					return data.remaining();
+				}
+			};
+		}
+	};
+	
+	PackClassLoader(String pluginName, Map<String, ByteBuffer> entries, ClassLoader parent) {
+		super(new URL[0], parent);
+		this.pluginName = pluginName;
+		this.entries = entries;
+	}
+	
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		ByteBuffer data = entries.get(name.replace('.', '/') + ".class");
+		if (data == null) {
+			throw new ClassNotFoundException(name);
+		}
+		Class<?> c = defineClass(name, data.duplicate(), (ProtectionDomain) null);
+		classDefined();
+		return c;
+	}
+	
+	@Override
+	public URL findResource(String name) {
+		if (!entries.containsKey(name)) {
+			return null;
+		}
+		try {
+			return new URL("abpack", null, -1, "/" + pluginName + "/" + name, handler);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+	
+	@Override
+	public Enumeration<URL> findResources(String name) throws IOException {
+		URL url = findResource(name);
+		return url == null ? Collections.<URL>emptyEnumeration() : Collections.enumeration(Collections.singletonList(url));
+	}
+}
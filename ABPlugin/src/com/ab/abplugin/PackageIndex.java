@@ -0,0 +1,97 @@
+package com.ab.abplugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import anywheresoftware.b4a.BA;
+
+// Tracks which loaded plugin jars bundle which packages, to point out libraries that are defined
+// again by every plugin and would better be moved to the shared libraries directory.
+class PackageIndex {
+	private final Map<String, List<ABPluginDefinition>> owners = new HashMap<String, List<ABPluginDefinition>>();
+	private Set<String> sharedPackages = new HashSet<String>();
+	
+	// Packages of the given class names, without the package of the plugin class itself
+	static Set<String> packagesOf(Collection<String> classNames, String pluginPackage) {
+		Set<String> packages = new LinkedHashSet<String>();
+		for (String className : classNames) {
+			int dot = className.lastIndexOf('.');
+			if (dot <= 0 || className.startsWith("META-INF.")) {
+				continue;
+			}
+			String pkg = className.substring(0, dot);
+			if (!pkg.equals(pluginPackage)) {
+				packages.add(pkg);
+			}
+		}
+		return packages;
+	}
+	
+	synchronized void setSharedPackages(Set<String> packages) {
+		sharedPackages = packages;
+	}
+	
+	synchronized void add(ABPluginDefinition def) {
+		for (String pkg : def.packages) {
+			if (sharedPackages.contains(pkg)) {
+				BA.Log("Package '" + pkg + "' in plugin " + def.Name + " is also in the shared libraries, the shared classes are used");
+				continue;
+			}
+			List<ABPluginDefinition> list = owners.get(pkg);
+			if (list == null) {
+				list = new ArrayList<ABPluginDefinition>(2);
+				owners.put(pkg, list);
+			}
+			list.add(def);
+			Set<String> names = names(list);
+			if (names.size() > 1) {
+				BA.Log("Package '" + pkg + "' is bundled by plugins " + names + ", consider moving it to the shared libraries directory");
+			}
+		}
+	}
+	
+	synchronized void remove(ABPluginDefinition def) {
+		for (String pkg : def.packages) {
+			List<ABPluginDefinition> list = owners.get(pkg);
+			if (list != null) {
+				// By identity, an older version of the same jar may still be registered
+				for (int i=0; i<list.size(); i++) {
+					if (list.get(i) == def) {
+						list.remove(i);
+						break;
+					}
+				}
+				if (list.isEmpty()) {
+					owners.remove(pkg);
+				}
+			}
+		}
+	}
+	
+	// Packages bundled by more than one plugin jar, with the names of those jars
+	synchronized Map<String, Set<String>> duplicates() {
+		Map<String, Set<String>> ret = new TreeMap<String, Set<String>>();
+		for (Map.Entry<String, List<ABPluginDefinition>> entry : owners.entrySet()) {
+			Set<String> names = names(entry.getValue());
+			if (names.size() > 1) {
+				ret.put(entry.getKey(), names);
+			}
+		}
+		return ret;
+	}
+	
+	private static Set<String> names(List<ABPluginDefinition> defs) {
+		Set<String> names = new LinkedHashSet<String>();
+		for (ABPluginDefinition def : defs) {
+			names.add(def.Name);
+		}
+		return names;
+	}
+}
@@ -0,0 +1,72 @@
+package com.ab.abplugin;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Changes to the loaded plugins that have not been reported yet, merged per NiceName.
+// A plugin added and removed again within one window is not reported at all.
+class PluginChanges {
+	static final String ADDED = "Added";
+	static final String UPDATED = "Updated";
+	static final String REMOVED = "Removed";
+
+	// Keyed on the lower cased NiceName, values are {NiceName, change}
+	private final LinkedHashMap<String, String[]> pending = new LinkedHashMap<String, String[]>();
+
+	// Records the difference between two published snapshots
+	synchronized void add(PluginRegistry before, PluginRegistry after) {
+		for (Map.Entry<String, ABPluginDefinition> entry : before.pluginsByNiceName.entrySet()) {
+			ABPluginDefinition def = after.pluginsByNiceName.get(entry.getKey());
+			if (def == null) {
+				if (!after.lists(entry.getKey())) {
+					merge(entry.getKey(), entry.getValue().NiceName, REMOVED);
+				}
+			} else if (def != entry.getValue()) {
+				merge(entry.getKey(), def.NiceName, UPDATED);
+			}
+		}
+		for (Map.Entry<String, PluginRegistry.CachedName> entry : before.cachedNames.entrySet()) {
+			if (before.pluginsByNiceName.containsKey(entry.getKey())) {
+				continue;
+			}
+			// The host only knew the cached name, the plugin behind it counts as updated
+			ABPluginDefinition def = after.pluginsByNiceName.get(entry.getKey());
+			if (def != null) {
+				merge(entry.getKey(), def.NiceName, UPDATED);
+			} else if (!after.cachedNames.containsKey(entry.getKey())) {
+				merge(entry.getKey(), entry.getValue().niceName, REMOVED);
+			}
+		}
+		for (ABPluginDefinition def : after.plugins.values()) {
+			String key = ABPlugin.niceNameKey(def.NiceName);
+			if (!before.lists(key)) {
+				merge(key, def.NiceName, ADDED);
+			}
+		}
+	}
+
+	private void merge(String key, String niceName, String change) {
+		String[] previous = pending.get(key);
+		if (previous != null) {
+			if (previous[1] == ADDED) {
+				if (change == REMOVED) {
+					pending.remove(key);
+					return;
+				}
+				change = ADDED;
+			} else if (previous[1] == REMOVED && change == ADDED) {
+				change = UPDATED;
+			}
+		}
+		pending.put(key, new String[] {niceName, change});
+	}
+
+	// Returns the pending changes and starts a new window
+	synchronized List<String[]> drain() {
+		List<String[]> ret = new ArrayList<String[]>(pending.values());
+		pending.clear();
+		return ret;
+	}
+}
@@ -0,0 +1,51 @@
+package com.ab.abplugin;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Rejects calls to one loaded version of a plugin after a number of consecutive failures or timeouts.
+// After the cool-down a single call is let through as a probe: if it succeeds the circuit closes,
+// if it fails the circuit opens again. A reloaded plugin starts with a closed circuit.
+class PluginCircuitBreaker {
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicBoolean probing = new AtomicBoolean();
+	private final AtomicBoolean rejectionLogged = new AtomicBoolean();
+	private volatile long openUntil=0;
+
+	// Returns false if the call must be rejected
+	boolean tryAcquire(int threshold) {
+		if (failures.get() < threshold) {
+			return true;
+		}
+		if (System.currentTimeMillis() < openUntil) {
+			return false;
+		}
+		return probing.compareAndSet(false, true);
+	}
+
+	// Called when an acquired call finishes. Returns true if this failure opened the circuit.
+	boolean record(boolean success, int threshold, long coolDownMS) {
+		if (success) {
+			failures.set(0);
+			probing.set(false);
+			return false;
+		}
+		int count = failures.incrementAndGet();
+		boolean probe = probing.getAndSet(false);
+		if (count == threshold || (count > threshold && probe)) {
+			openUntil = System.currentTimeMillis() + coolDownMS;
+			rejectionLogged.set(false);
+			return true;
+		}
+		return false;
+	}
+
+	// True for the first rejected call each time the circuit opens, so rejections are logged once
+	boolean firstRejection() {
+		return rejectionLogged.compareAndSet(false, true);
+	}
+
+	boolean isOpen(int threshold) {
+		return threshold > 0 && failures.get() >= threshold;
+	}
+}
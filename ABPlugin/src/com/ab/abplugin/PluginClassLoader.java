@@ -0,0 +1,34 @@
+package com.ab.abplugin;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Class loader of one plugin jar. Counts the classes it defines, which is what stays in metaspace
+// for as long as the loader is reachable.
+class PluginClassLoader extends URLClassLoader {
+	static {
+		ClassLoader.registerAsParallelCapable();
+	}
+	
+	private final AtomicInteger definedClasses = new AtomicInteger();
+	
+	PluginClassLoader(URL[] urls, ClassLoader parent) {
+		super(urls, parent);
+	}
+	
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		Class<?> c = super.findClass(name);
+		classDefined();
+		return c;
+	}
+	
+	void classDefined() {
+		definedClasses.incrementAndGet();
+	}
+	
+	int getDefinedClassCount() {
+		return definedClasses.get();
+	}
+}
@@ -0,0 +1,34 @@
+package com.ab.abplugin;
+
+import java.util.ArrayDeque;
+
+// Limits how many asynchronous calls of one plugin run at the same time. Calls over the limit
+// wait in the lane instead of occupying a pool thread, so a hot plugin cannot starve the others.
+class PluginLane {
+	final int limit;
+	private int running=0;
+	private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+	
+	PluginLane(int limit) {
+		this.limit = limit;
+	}
+	
+	// Returns true if the task may run now, otherwise it is queued until a running call finishes
+	synchronized boolean tryStart(Runnable task) {
+		if (running < limit) {
+			running++;
+			return true;
+		}
+		waiting.add(task);
+		return false;
+	}
+	
+	// Called when a call finishes. Returns the next queued task, which takes over the slot, or null.
+	synchronized Runnable finish() {
+		Runnable next = waiting.poll();
+		if (next == null) {
+			running--;
+		}
+		return next;
+	}
+}
@@ -0,0 +1,191 @@
+package com.ab.abplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import anywheresoftware.b4a.BA;
+
+// On-disk index of plugin metadata, so a host can publish its plugins before the jars are loaded
+// and skip searching a jar for its plugin class as long as the jar did not change.
+// Lookups can come from several load threads at the same time.
+class PluginMetadataCache {
+	static final String FILE_NAME = ".abplugin-index.properties";
+	
+	static class Entry {
+		long size;
+		long lastModified;
+		String hash;
+		String mainClass;
+		String niceName;
+	}
+	
+	private final File file;
+	// Keyed on the lower cased jar name without extension, in load order
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private boolean dirty=false;
+	
+	PluginMetadataCache(File pluginsDir) {
+		this.file = new File(pluginsDir, FILE_NAME);
+	}
+	
+	// A damaged index never stops the host: an unreadable file counts as empty, incomplete entries are
+	// skipped and the jars are simply searched again
+	synchronized void load() {
+		entries.clear();
+		if (!file.exists()) {
+			return;
+		}
+		Properties props = new Properties();
+		int count;
+		try (InputStream in = new FileInputStream(file)) {
+			props.load(in);
+			count = Integer.parseInt(props.getProperty("count", "0"));
+		} catch (IOException | IllegalArgumentException e) {
+			BA.Log("Ignoring unreadable plugin metadata cache: " + file.getAbsolutePath() + " - " + e.getMessage());
+			dirty = true;
+			return;
+		}
+		int skipped = 0;
+		// Every entry has several properties, a count larger than that is bogus
+		count = Math.min(count, props.size());
+		for (int i=0; i<count; i++) {
+			String prefix = i + ".";
+			String key = props.getProperty(prefix + "key");
+			Entry entry = new Entry();
+			entry.hash = props.getProperty(prefix + "hash");
+			entry.mainClass = props.getProperty(prefix + "mainClass");
+			entry.niceName = props.getProperty(prefix + "niceName");
+			if (key == null || entry.hash == null || entry.mainClass == null || entry.niceName == null || entry.niceName.isEmpty()) {
+				skipped++;
+				continue;
+			}
+			try {
+				entry.size = Long.parseLong(props.getProperty(prefix + "size"));
+				entry.lastModified = Long.parseLong(props.getProperty(prefix + "lastModified"));
+				entries.put(key, entry);
+			} catch (NumberFormatException e) {
+				skipped++;
+			}
+		}
+		if (skipped > 0) {
+			BA.Log("Ignoring " + skipped + " invalid plugin metadata cache entries in " + file.getAbsolutePath());
+			dirty = true;
+		}
+	}
+	
+	synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+		Properties props = new Properties();
+		int i = 0;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			String prefix = i + ".";
+			Entry entry = e.getValue();
+			props.setProperty(prefix + "key", e.getKey());
+			props.setProperty(prefix + "size", String.valueOf(entry.size));
+			props.setProperty(prefix + "lastModified", String.valueOf(entry.lastModified));
+			props.setProperty(prefix + "hash", entry.hash);
+			props.setProperty(prefix + "mainClass", entry.mainClass);
+			props.setProperty(prefix + "niceName", entry.niceName);
+			i++;
+		}
+		props.setProperty("count", String.valueOf(i));
+		// Write to a temporary file first, so a crash never leaves a half written index behind
+		File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+		try {
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				props.store(out, "ABPlugin metadata cache");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			dirty = false;
+		} catch (IOException e) {
+			BA.Log("Failed to write plugin metadata cache: " + file.getAbsolutePath() + " - " + e.getMessage());
+		}
+	}
+	
+	synchronized List<Object> niceNames() {
+		List<Object> names = new ArrayList<Object>(entries.size());
+		for (Entry entry : entries.values()) {
+			names.add(entry.niceName);
+		}
+		return names;
+	}
+	
+	// Returns the cached entry if the jar still has the same fingerprint. Size and modification time
+	// are checked first, the content hash only when the jar was touched without changing its size.
+	synchronized Entry lookup(String key, File jar) {
+		Entry entry = entries.get(key);
+		if (entry == null || entry.size != jar.length()) {
+			return null;
+		}
+		if (entry.lastModified == jar.lastModified()) {
+			return entry;
+		}
+		if (entry.hash.equals(hash(jar))) {
+			entry.lastModified = jar.lastModified();
+			dirty = true;
+			return entry;
+		}
+		return null;
+	}
+	
+	synchronized void put(String key, File jar, String mainClass, String niceName) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.size == jar.length() && entry.lastModified == jar.lastModified()
+				&& mainClass.equals(entry.mainClass) && niceName.equals(entry.niceName)) {
+			return;
+		}
+		String hash = hash(jar);
+		if (hash == null) {
+			return;
+		}
+		entry = new Entry();
+		entry.size = jar.length();
+		entry.lastModified = jar.lastModified();
+		entry.hash = hash;
+		entry.mainClass = mainClass;
+		entry.niceName = niceName;
+		entries.put(key, entry);
+		dirty = true;
+	}
+	
+	synchronized void retainOnly(Set<String> keys) {
+		if (entries.keySet().retainAll(keys)) {
+			dirty = true;
+		}
+	}
+	
+	static String hash(File jar) {
+		try (InputStream in = new FileInputStream(jar)) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (IOException | NoSuchAlgorithmException e) {
+			BA.Log("Failed to hash JAR file: " + jar.getAbsolutePath() + " - " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package com.ab.abplugin;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+
+import anywheresoftware.b4a.BA;
+
+// A single file holding many plugins, so a directory with thousands of plugins needs one stat per
+// scan. The index is read into memory when the pack is opened and the entries of a plugin are read
+// when it is loaded, no file handle stays open in between. Replace a pack by writing a new file and
+// renaming it over the old one, a pack overwritten in place can be read half written.
+// Layout, numbers are big endian and strings are a short length followed by UTF-8 bytes:
+//   "ABPK", version (int), plugin count (int), index length (int)
+//   index, per plugin: name, entry class, flags (byte), fingerprint (long), entry count (int),
+//     and per entry: path, offset in the data section (int), length (int)
+//   data: the uncompressed entries of all plugins
+final class PluginPack {
+	static final String EXTENSION = ".abpack";
+	// Separates the pack path from the plugin name in the path of a packed plugin
+	static final String SEPARATOR = "!/";
+	private static final int MAGIC = 0x4142504B;
+	private static final int VERSION = 1;
+	private static final int FLAG_CACHEABLE = 1;
+	private static final int HEADER_SIZE = 16;
+	
+	static final class Item {
+		final String name;
+		final String entryClass;
+		final boolean cacheable;
+		// CRC32 of the entries, changes when the plugin changes
+		final long fingerprint;
+		private final int entriesPosition;
+		private final int entryCount;
+		
+		private Item(String name, String entryClass, boolean cacheable, long fingerprint, int entriesPosition, int entryCount) {
+			this.name = name;
+			this.entryClass = entryClass;
+			this.cacheable = cacheable;
+			this.fingerprint = fingerprint;
+			this.entriesPosition = entriesPosition;
+			this.entryCount = entryCount;
+		}
+	}
+	
+	final File file;
+	final long lastModified;
+	final List<Item> items;
+	private final Map<String, Item> byName;
+	// The index section, entry positions of the items point into it
+	private final ByteBuffer index;
+	private final int dataStart;
+	
+	private PluginPack(File file, long lastModified, ByteBuffer index, List<Item> items, int dataStart) {
+		this.file = file;
+		this.lastModified = lastModified;
+		this.index = index;
+		this.items = Collections.unmodifiableList(items);
+		this.dataStart = dataStart;
+		this.byName = new HashMap<String, Item>(items.size() * 2);
+		for (Item item : items) {
+			byName.put(item.name.toLowerCase(), item);
+		}
+	}
+	
+	// Reads the index of the pack, the entries themselves are only read when a plugin is loaded
+	static PluginPack open(File file) throws IOException {
+		long lastModified = file.lastModified();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Plugin pack larger than 2GB");
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header, 0);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("Not a version " + VERSION + " plugin pack");
+			}
+			int count = header.getInt(8);
+			int dataStart = HEADER_SIZE + header.getInt(12);
+			if (count < 0 || dataStart < HEADER_SIZE || dataStart > size) {
+				throw new IOException("Corrupt plugin pack header");
+			}
+			long dataLength = size - dataStart;
+			ByteBuffer index = ByteBuffer.allocate(dataStart - HEADER_SIZE);
+			readFully(channel, index, HEADER_SIZE);
+			index.flip();
+			List<Item> items = new ArrayList<Item>(Math.min(count, 1024));
+			try {
+				for (int i=0; i<count; i++) {
+					String name = readString(index);
+					String entryClass = readString(index);
+					boolean cacheable = (index.get() & FLAG_CACHEABLE) != 0;
+					long fingerprint = index.getLong();
+					int entryCount = index.getInt();
+					items.add(new Item(name, entryClass, cacheable, fingerprint, index.position(), entryCount));
+					// Only check the entries, they are read when the plugin is loaded. A pack with an entry
+					// outside the data section is rejected as a whole.
+					for (int e=0; e<entryCount; e++) {
+						int pathLength = index.getShort() & 0xFFFF;
+						index.position(index.position() + pathLength);
+						int offset = index.getInt();
+						int length = index.getInt();
+						if (offset < 0 || length < 0 || offset > dataLength - length) {
+							throw new IOException("Corrupt plugin pack: entry of " + name + " outside the data section");
+						}
+					}
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("Corrupt plugin pack: " + e);
+			}
+			return new PluginPack(file, lastModified, index, items, dataStart);
+		}
+	}
+	
+	Item get(String name) {
+		return byName.get(name.toLowerCase());
+	}
+	
+	// Path of a packed plugin, as used by the loader
+	String path(Item item) {
+		return file.getAbsolutePath() + SEPARATOR + item.name;
+	}
+	
+	// Entries of one plugin by path, read from the pack file so a loaded plugin no longer depends on it.
+	// Fails if the pack was replaced since it was opened, the next scan opens the new one.
+	Map<String, ByteBuffer> entries(Item item) throws IOException {
+		Map<String, ByteBuffer> entries = new HashMap<String, ByteBuffer>(item.entryCount * 2);
+		ByteBuffer entryIndex = index.duplicate();
+		entryIndex.position(item.entriesPosition);
+		CRC32 crc = new CRC32();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			for (int e=0; e<item.entryCount; e++) {
+				String path = readString(entryIndex);
+				long offset = dataStart + (long) entryIndex.getInt();
+				ByteBuffer data = ByteBuffer.allocate(entryIndex.getInt());
+				readFully(channel, data, offset);
+				crc.update(path.getBytes(StandardCharsets.UTF_8));
+				crc.update(data.array(), 0, data.capacity());
+				data.flip();
+				entries.put(path, data.asReadOnlyBuffer());
+			}
+		}
+		if (crc.getValue() != item.fingerprint) {
+			throw new IOException("Plugin pack " + file.getName() + " changed since it was opened");
+		}
+		return entries;
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Plugin pack is truncated");
+			}
+			position += read;
+		}
+	}
+	
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+	
+	// Writes the plugins in the given jars to one pack. Each jar is read once, its data goes to a temporary
+	// file as it is indexed, so large packs do not have to fit in memory. parent is used to load classes
+	// when a jar has no class named after it. Returns the number of plugins written.
+	static int create(List<File> jars, File packFile, ClassLoader parent) throws IOException {
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		DataOutputStream index = new DataOutputStream(indexBytes);
+		File dataFile = new File(packFile.getAbsolutePath() + ".data.tmp");
+		File temp = new File(packFile.getAbsolutePath() + ".tmp");
+		int packed = 0;
+		try {
+			long dataLength = 0;
+			try (OutputStream data = new BufferedOutputStream(new FileOutputStream(dataFile), 64 * 1024)) {
+				for (File jar : jars) {
+					try (JarFile jarFile = new JarFile(jar)) {
+						String name = jar.getName().substring(0, jar.getName().length()-4);
+						String entryClass = null;
+						boolean cacheable = false;
+						Manifest manifest = jarFile.getManifest();
+						if (manifest != null) {
+							entryClass = manifest.getMainAttributes().getValue(ABPlugin.MANIFEST_PLUGIN_CLASS);
+							cacheable = "true".equalsIgnoreCase(manifest.getMainAttributes().getValue(ABPlugin.MANIFEST_CACHEABLE));
+						}
+						
+						// Kept until the jar is known to hold a plugin, then appended to the data file
+						ByteArrayOutputStream jarData = new ByteArrayOutputStream();
+						ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+						DataOutputStream entryIndex = new DataOutputStream(entryBytes);
+						CRC32 crc = new CRC32();
+						int entryCount = 0;
+						String byName = null;
+						Map<String, ByteBuffer> classEntries = new LinkedHashMap<String, ByteBuffer>();
+						Enumeration<JarEntry> entries = jarFile.entries();
+						while (entries.hasMoreElements()) {
+							JarEntry entry = entries.nextElement();
+							if (entry.isDirectory()) {
+								continue;
+							}
+							byte[] bytes = readAll(jarFile.getInputStream(entry));
+							if (dataLength + jarData.size() + bytes.length > Integer.MAX_VALUE - HEADER_SIZE) {
+								throw new IOException("Plugin pack would be larger than 2GB");
+							}
+							crc.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+							crc.update(bytes);
+							writeString(entryIndex, entry.getName());
+							entryIndex.writeInt((int) (dataLength + jarData.size()));
+							entryIndex.writeInt(bytes.length);
+							jarData.write(bytes);
+							entryCount++;
+							
+							if (entryClass == null && byName == null && entry.getName().endsWith(".class")) {
+								String className = entry.getName().substring(0, entry.getName().length()-6).replace('/', '.');
+								if (className.toLowerCase().endsWith("." + name.toLowerCase()) || className.equalsIgnoreCase(name)) {
+									byName = className;
+								} else {
+									classEntries.put(entry.getName(), ByteBuffer.wrap(bytes));
+								}
+							}
+						}
+						if (entryClass == null) {
+							entryClass = byName != null ? byName : findPluginClass(name, classEntries, parent);
+						}
+						if (entryClass == null) {
+							BA.Log("No plugin class found in " + jar.getAbsolutePath() + ", not packed");
+							continue;
+						}
+						writeString(index, name);
+						writeString(index, entryClass.trim());
+						index.writeByte(cacheable ? FLAG_CACHEABLE : 0);
+						index.writeLong(crc.getValue());
+						index.writeInt(entryCount);
+						entryBytes.writeTo(index);
+						jarData.writeTo(data);
+						dataLength += jarData.size();
+						packed++;
+					}
+				}
+			}
+			index.flush();
+			
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(packed);
+				out.writeInt(indexBytes.size());
+				indexBytes.writeTo(out);
+				Files.copy(dataFile.toPath(), out);
+			}
+			Files.move(temp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			dataFile.delete();
+			temp.delete();
+		}
+		return packed;
+	}
+	
+	// Same rules as the jar loader for a jar without a class named after it: the first class with a
+	// _getnicename method, else the first class. classEntries holds the classes in jar order.
+	private static String findPluginClass(String name, Map<String, ByteBuffer> classEntries, ClassLoader parent) throws IOException {
+		if (classEntries.isEmpty()) {
+			return null;
+		}
+		List<String> classes = new ArrayList<String>(classEntries.size());
+		for (String entry : classEntries.keySet()) {
+			classes.add(entry.substring(0, entry.length()-6).replace('/', '.'));
+		}
+		try (PackClassLoader classLoader = new PackClassLoader(name, classEntries, parent)) {
+			for (String className : classes) {
+				try {
+					classLoader.loadClass(className).getMethod("_getnicename");
+					return className;
+				} catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+					// Not the plugin class, continue searching
+				}
+			}
+		}
+		BA.Log("No class with _getnicename method found in " + name + ", using first class");
+		return classes.get(0);
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		try (InputStream input = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			copy(input, out);
+			return out.toByteArray();
+		}
+	}
+	
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		try (InputStream input = in) {
+			byte[] buffer = new byte[16 * 1024];
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.ab.abplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Immutable snapshot of the loaded plugins. The loader builds a new one once per scan cycle and
+// publishes it with a single volatile write, so readers never have to take a lock.
+class PluginRegistry {
+	static final PluginRegistry EMPTY = new PluginRegistry(new LinkedHashMap<String, ABPluginDefinition>(), new HashMap<String, ABPluginDefinition>());
+	
+	// A NiceName from the metadata cache of roots that have not been scanned yet
+	static final class CachedName {
+		final String niceName;
+		final List<PluginRoot> roots;
+		
+		CachedName(String niceName, List<PluginRoot> roots) {
+			this.niceName = niceName;
+			this.roots = Collections.unmodifiableList(roots);
+		}
+	}
+	
+	// Keyed on the lower cased jar file name, in load order
+	final Map<String, ABPluginDefinition> plugins;
+	// Keyed on the lower cased NiceName
+	final Map<String, ABPluginDefinition> pluginsByNiceName;
+	// Keyed on the lower cased NiceName, listed until all roots that cached them have been scanned
+	final Map<String, CachedName> cachedNames;
+	// Precomputed result of GetAvailablePlugins
+	final List<Object> niceNames;
+	
+	// Takes ownership of the given maps, the caller must not change them afterwards
+	PluginRegistry(LinkedHashMap<String, ABPluginDefinition> plugins, HashMap<String, ABPluginDefinition> pluginsByNiceName) {
+		this(plugins, pluginsByNiceName, new LinkedHashMap<String, CachedName>());
+	}
+	
+	PluginRegistry(LinkedHashMap<String, ABPluginDefinition> plugins, HashMap<String, ABPluginDefinition> pluginsByNiceName, LinkedHashMap<String, CachedName> cachedNames) {
+		this.plugins = Collections.unmodifiableMap(plugins);
+		this.pluginsByNiceName = Collections.unmodifiableMap(pluginsByNiceName);
+		this.cachedNames = Collections.unmodifiableMap(cachedNames);
+		List<Object> names = new ArrayList<Object>(plugins.size() + cachedNames.size());
+		for (ABPluginDefinition def : plugins.values()) {
+			names.add(def.NiceName);
+		}
+		for (Map.Entry<String, CachedName> entry : cachedNames.entrySet()) {
+			if (!pluginsByNiceName.containsKey(entry.getKey())) {
+				names.add(entry.getValue().niceName);
+			}
+		}
+		this.niceNames = Collections.unmodifiableList(names);
+	}
+	
+	// True if the name is listed, loaded or only known from the metadata cache
+	boolean lists(String niceNameKey) {
+		return pluginsByNiceName.containsKey(niceNameKey) || cachedNames.containsKey(niceNameKey);
+	}
+	
+	// The cached names without those of the given root, which has just been scanned
+	LinkedHashMap<String, CachedName> cachedNamesWithout(PluginRoot root) {
+		LinkedHashMap<String, CachedName> ret = new LinkedHashMap<String, CachedName>();
+		for (Map.Entry<String, CachedName> entry : cachedNames.entrySet()) {
+			List<PluginRoot> roots = new ArrayList<PluginRoot>(entry.getValue().roots);
+			roots.remove(root);
+			if (!roots.isEmpty()) {
+				ret.put(entry.getKey(), new CachedName(entry.getValue().niceName, roots));
+			}
+		}
+		return ret;
+	}
+	
+	boolean hasCachedNames(PluginRoot root) {
+		for (CachedName cached : cachedNames.values()) {
+			if (cached.roots.contains(root)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,93 @@
+package com.ab.abplugin;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Size bounded LRU cache of _run results of one plugin version, keyed on Tag and the contents of
+// Params (or the Args of RunPluginArgs). It belongs to the ABPluginDefinition, so a reload or removal of the plugin drops it.
+class PluginResultCache {
+	static final Object MISS = new Object();
+	private static final Object NULL = new Object();
+	
+	private static final class Key {
+		private final String tag;
+		// Copy of the params or args, so later changes by the caller do not affect the cached key
+		private final Object params;
+		private final int hash;
+		
+		Key(String tag, Object params) {
+			this.tag = tag;
+			this.params = params;
+			this.hash = 31 * (tag == null ? 0 : tag.hashCode()) + (this.params == null ? 0 : this.params.hashCode());
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hash == other.hash
+					&& (tag == null ? other.tag == null : tag.equals(other.tag))
+					&& (params == null ? other.params == null : params.equals(other.params));
+		}
+	}
+	
+	private static final class Value {
+		final Object result;
+		final long expiresAt;
+		
+		Value(Object result, long expiresAt) {
+			this.result = result;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	private final long ttlMS;
+	private final LinkedHashMap<Key, Value> entries;
+	
+	// ttlMS <= 0 keeps entries until they are evicted by size
+	PluginResultCache(final int maxEntries, long ttlMS) {
+		this.ttlMS = ttlMS;
+		this.entries = new LinkedHashMap<Key, Value>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	static Object key(String tag, anywheresoftware.b4a.objects.collections.Map params) {
+		return new Key(tag, params == null || params.getObject() == null ? null : new HashMap<Object, Object>(params.getObject()));
+	}
+	
+	static Object key(String tag, Object[] args) {
+		return new Key(tag, args == null ? null : Arrays.asList(args.clone()));
+	}
+	
+	// Returns the cached result, or MISS
+	synchronized Object get(Object key) {
+		Value value = entries.get(key);
+		if (value == null) {
+			return MISS;
+		}
+		if (ttlMS > 0 && System.currentTimeMillis() > value.expiresAt) {
+			entries.remove(key);
+			return MISS;
+		}
+		return value.result == NULL ? null : value.result;
+	}
+	
+	synchronized void put(Object key, Object result) {
+		entries.put((Key) key, new Value(result == null ? NULL : result, ttlMS > 0 ? System.currentTimeMillis() + ttlMS : Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,56 @@
+package com.ab.abplugin;
+
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+// A directory plugins are loaded from, with its own check schedule and load threads. The directory
+// passed to Initialize is the first root, AddPluginRoot adds more. All roots are scanned on the
+// single loader thread, so only one scan changes the registry at a time.
+class PluginRoot {
+	// A plugin that is not loaded because another plugin with the same NiceName won
+	static final class Shadowed {
+		final long version;
+		final String niceNameKey;
+		final String path;
+		
+		Shadowed(long version, String niceNameKey, String path) {
+			this.version = version;
+			this.niceNameKey = niceNameKey;
+			this.path = path;
+		}
+	}
+	
+	final String dir;
+	// Decides which plugin is used when roots have plugins with the same NiceName, highest wins
+	final int priority;
+	// Prepended to the registry keys of the plugins in this root, empty for the first root
+	final String keyPrefix;
+	final Runnable scan;
+	volatile long checkIntervalMS=0;
+	volatile boolean watch=false;
+	volatile int loadParallelism=1;
+	ExecutorService loadPool = null;
+	int loadPoolThreads = 0;
+	Future<?> future = null;
+	// Periodic check of a watched root
+	Future<?> safetyPoll = null;
+	volatile boolean watching=false;
+	volatile WatchService watchService = null;
+	volatile PluginMetadataCache metadataCache = null;
+	// Plugin packs in the directory by path, as opened by the last scan
+	final ConcurrentHashMap<String, PluginPack> packs = new ConcurrentHashMap<String, PluginPack>();
+	// By registry key, only used on the loader thread. Keeps a losing duplicate from being loaded and
+	// initialized again on every scan, it is checked again when it changes or the winner goes away.
+	final LinkedHashMap<String, Shadowed> shadowed = new LinkedHashMap<String, Shadowed>();
+	
+	PluginRoot(String dir, int priority, String keyPrefix, Consumer<PluginRoot> scanner) {
+		this.dir = dir;
+		this.priority = priority;
+		this.keyPrefix = keyPrefix;
+		this.scan = () -> scanner.accept(this);
+	}
+}
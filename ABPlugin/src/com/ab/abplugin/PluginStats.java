@@ -0,0 +1,86 @@
+package com.ab.abplugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Performance counters of one plugin, kept by NiceName so they survive reloads.
+// Recording a call does not allocate.
+class PluginStats {
+	// Bucket i counts calls that took at least 2^(i-1) and less than 2^i nanoseconds
+	private static final int BUCKETS = 64;
+	
+	private final LongAdder invocations = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+	private final AtomicLong maxNanos = new AtomicLong();
+	final LongAdder cacheHits = new LongAdder();
+	final LongAdder cacheMisses = new LongAdder();
+	final LongAdder timeouts = new LongAdder();
+	// Calls rejected by the circuit breaker, not counted as invocations
+	final LongAdder rejected = new LongAdder();
+	// Written by the loader only
+	volatile String niceName="";
+	volatile long loadNanos=0;
+	volatile long initializeNanos=0;
+	volatile int loads=0;
+	
+	void record(long nanos, boolean failed) {
+		invocations.increment();
+		if (failed) {
+			errors.increment();
+		}
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		latency.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			// Another thread raised the maximum, try again
+		}
+	}
+	
+	void recordLoad(String niceName, long loadNanos, long initializeNanos) {
+		this.niceName = niceName;
+		this.loadNanos = loadNanos;
+		this.initializeNanos = initializeNanos;
+		loads++;
+	}
+	
+	long getInvocations() {
+		return invocations.sum();
+	}
+	
+	long getErrors() {
+		return errors.sum();
+	}
+	
+	long getMaxNanos() {
+		return maxNanos.get();
+	}
+	
+	int getReloads() {
+		return Math.max(0, loads - 1);
+	}
+	
+	// Upper bound of the bucket holding the given fraction of calls, capped by the maximum
+	long percentileNanos(double fraction) {
+		long total = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			total += latency.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			seen += latency.get(i);
+			if (seen >= target) {
+				long upper = i >= 63 ? Long.MAX_VALUE : (1L << i);
+				return Math.min(upper, getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+}
@@ -0,0 +1,112 @@
+package com.ab.abplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Set;
+
+import anywheresoftware.b4a.BA;
+
+// Process wide cache of loaded plugin jars, used by the ABPlugin instances that enabled sharing.
+// Instances loading the same jar content with the same parent loader share its class loader and
+// plugin class, each still creates and initializes its own plugin object. A loader is closed when
+// the last instance using it unloads the plugin.
+final class SharedJars {
+	static final class Key {
+		final String path;
+		final String fingerprint;
+		final ClassLoader parent;
+		
+		private Key(String path, String fingerprint, ClassLoader parent) {
+			this.path = path;
+			this.fingerprint = fingerprint;
+			this.parent = parent;
+		}
+		
+		@Override
+		public int hashCode() {
+			return path.hashCode() * 31 + fingerprint.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return parent == other.parent && path.equals(other.path) && fingerprint.equals(other.fingerprint);
+		}
+	}
+	
+	static final class Entry {
+		final PluginClassLoader classLoader;
+		final Class<?> objectClass;
+		final Set<String> packages;
+		final boolean cacheable;
+		private int refs = 1;
+		
+		private Entry(ABPluginDefinition def) {
+			this.classLoader = def.classLoader;
+			this.objectClass = def.objectClass;
+			this.packages = def.packages;
+			this.cacheable = def.cacheable;
+		}
+	}
+	
+	private static final HashMap<Key, Entry> entries = new HashMap<Key, Entry>();
+	
+	private SharedJars() {
+	}
+	
+	// Returns null if the jar cannot be read
+	static Key key(File jar, ClassLoader parent) {
+		String hash = PluginMetadataCache.hash(jar);
+		if (hash == null) {
+			return null;
+		}
+		String path;
+		try {
+			path = jar.getCanonicalPath();
+		} catch (IOException e) {
+			path = jar.getAbsolutePath();
+		}
+		return new Key(path, jar.length() + ":" + hash, parent);
+	}
+	
+	// Returns the loaded jar and counts a reference to it, or null if no instance has it loaded
+	static synchronized Entry acquire(Key key) {
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			entry.refs++;
+		}
+		return entry;
+	}
+	
+	// Offers a freshly loaded jar for sharing. Returns false if another instance registered the same
+	// jar first, the caller then keeps its own loader for itself.
+	static synchronized boolean register(Key key, ABPluginDefinition def) {
+		if (entries.containsKey(key)) {
+			return false;
+		}
+		entries.put(key, new Entry(def));
+		return true;
+	}
+	
+	// Drops a reference. Returns true if it was the last one, the caller then closes the loader.
+	static synchronized boolean release(Key key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			BA.Log("Shared plugin jar released more often than acquired: " + key.path);
+			return true;
+		}
+		if (--entry.refs > 0) {
+			return false;
+		}
+		entries.remove(key);
+		return true;
+	}
+	
+	static synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,18 @@
+package anywheresoftware.b4a;
+
+// Stand-in for jCore's AbsObjectWrapper
+public abstract class AbsObjectWrapper<T> {
+	private T object;
+	
+	public void setObject(T object) {
+		this.object = object;
+	}
+	
+	public T getObject() {
+		return object;
+	}
+	
+	public boolean IsInitialized() {
+		return object != null;
+	}
+}
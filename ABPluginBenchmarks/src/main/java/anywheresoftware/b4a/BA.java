@@ -0,0 +1,38 @@
+package anywheresoftware.b4a;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Locale;
+
+// Minimal stand-in for jCore's BA, just enough to compile and run ABPlugin outside the B4J IDE.
+// Logging is off unless -Dabplugin.log=true is set, so it does not distort the measurements.
+public class BA {
+	public static final Locale cul = Locale.US;
+	private static final boolean LOG = Boolean.getBoolean("abplugin.log");
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface Author { String value(); }
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface DesignerName { String value(); }
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface Events { String[] values(); }
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface ShortName { String value(); }
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface Version { float value(); }
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface Hide { }
+	
+	public static void Log(String message) {
+		if (LOG) {
+			System.out.println(message);
+		}
+	}
+	
+	public Object raiseEvent(Object sender, String event, Object... params) {
+		return null;
+	}
+	
+	public void raiseEventFromDifferentThread(Object sender, Object container, int TaskId, String event, boolean throwErrorIfMissingSub, Object[] params) {
+	}
+}
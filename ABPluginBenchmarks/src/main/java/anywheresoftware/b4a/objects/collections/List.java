@@ -0,0 +1,24 @@
+package anywheresoftware.b4a.objects.collections;
+
+import java.util.ArrayList;
+
+import anywheresoftware.b4a.AbsObjectWrapper;
+
+// Stand-in for jCore's List
+public class List extends AbsObjectWrapper<java.util.List<Object>> {
+	public void Initialize() {
+		setObject(new ArrayList<Object>());
+	}
+	
+	public void Add(Object item) {
+		getObject().add(item);
+	}
+	
+	public Object Get(int index) {
+		return getObject().get(index);
+	}
+	
+	public int getSize() {
+		return getObject().size();
+	}
+}
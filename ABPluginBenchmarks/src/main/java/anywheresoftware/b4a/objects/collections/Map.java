@@ -0,0 +1,32 @@
+package anywheresoftware.b4a.objects.collections;
+
+import java.util.LinkedHashMap;
+
+import anywheresoftware.b4a.AbsObjectWrapper;
+
+// Stand-in for jCore's Map
+public class Map extends AbsObjectWrapper<Map.MyMap> {
+	public static class MyMap extends LinkedHashMap<Object, Object> {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	public void Initialize() {
+		setObject(new MyMap());
+	}
+	
+	public Object Put(Object key, Object value) {
+		return getObject().put(key, value);
+	}
+	
+	public Object Get(Object key) {
+		return getObject().get(key);
+	}
+	
+	public boolean ContainsKey(Object key) {
+		return getObject().containsKey(key);
+	}
+	
+	public int getSize() {
+		return getObject().size();
+	}
+}
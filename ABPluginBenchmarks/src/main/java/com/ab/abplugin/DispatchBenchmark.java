@@ -0,0 +1,108 @@
+package com.ab.abplugin;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// RunPlugin dispatch throughput and GetAvailablePlugins cost for different plugin counts
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+	@Param({"10", "100", "1000"})
+	public int plugins;
+	
+	private File root;
+	private ABPlugin host;
+	
+	@State(Scope.Thread)
+	public static class Caller {
+		private static int next = 0;
+		String niceName;
+		String tag = "tag";
+		anywheresoftware.b4a.objects.collections.Map params = new anywheresoftware.b4a.objects.collections.Map();
+		
+		@Setup(Level.Trial)
+		public void setup(DispatchBenchmark bench) {
+			// Spread the threads over different plugins
+			synchronized (Caller.class) {
+				niceName = "Plugin" + (next++ % bench.plugins);
+			}
+			params.Initialize();
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		root = SyntheticPlugins.createDirectory(plugins);
+		host = SyntheticPlugins.newHost(root);
+		SyntheticPlugins.scan(host);
+		if (host.GetAvailablePlugins().getSize() != plugins) {
+			throw new IllegalStateException("Expected " + plugins + " plugins, loaded " + host.GetAvailablePlugins().getSize());
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		host.Stop();
+		SyntheticPlugins.delete(root);
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public Object runPlugin1Thread(Caller caller) {
+		return host.RunPlugin(caller.niceName, caller.tag, caller.params);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public Object runPlugin4Threads(Caller caller) {
+		return host.RunPlugin(caller.niceName, caller.tag, caller.params);
+	}
+	
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Object runPluginMaxThreads(Caller caller) {
+		return host.RunPlugin(caller.niceName, caller.tag, caller.params);
+	}
+	
+	// Builds the Map for every call, as a host passing per-request values has to
+	@Benchmark
+	@Threads(1)
+	public Object runPluginNewMap1Thread(Caller caller) {
+		anywheresoftware.b4a.objects.collections.Map params = new anywheresoftware.b4a.objects.collections.Map();
+		params.Initialize();
+		params.Put("id", caller.tag);
+		params.Put("count", 1);
+		return host.RunPlugin(caller.niceName, caller.tag, params);
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public Object runPluginArgs1Thread(Caller caller) {
+		return host.RunPluginArgs(caller.niceName, caller.tag, new Object[] {caller.tag, 1});
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public Object getAvailablePlugins() {
+		return host.GetAvailablePlugins();
+	}
+}
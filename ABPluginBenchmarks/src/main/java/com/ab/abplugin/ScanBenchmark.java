@@ -0,0 +1,112 @@
+package com.ab.abplugin;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Loader cycle costs: a cold scan loading every plugin, a scan that finds nothing changed and a scan
+// that finds a single changed file. With layout "pack" all plugins are in one plugin pack.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+	@Param({"10", "100", "1000"})
+	public int plugins;
+	
+	@Param({"jars", "pack"})
+	public String layout;
+	
+	File root;
+	File pack;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		root = SyntheticPlugins.createDirectory(plugins);
+		if (layout.equals("pack")) {
+			pack = SyntheticPlugins.pack(root);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticPlugins.delete(root);
+	}
+	
+	// A new host for every invocation, so every scan loads all jars
+	@State(Scope.Benchmark)
+	public static class Cold {
+		ABPlugin host;
+		
+		@Setup(Level.Invocation)
+		public void setup(ScanBenchmark bench) {
+			host = SyntheticPlugins.newHost(bench.root);
+		}
+		
+		@TearDown(Level.Invocation)
+		public void tearDown() {
+			SyntheticPlugins.unloadAll(host);
+		}
+	}
+	
+	// One fully loaded host, scanning it again finds nothing changed
+	@State(Scope.Benchmark)
+	public static class Loaded {
+		ABPlugin host;
+		File jar;
+		
+		@Setup(Level.Trial)
+		public void setup(ScanBenchmark bench) {
+			host = SyntheticPlugins.newHost(bench.root);
+			SyntheticPlugins.scan(host);
+			jar = bench.pack != null ? bench.pack : new File(SyntheticPlugins.pluginsDir(bench.root), "plugin0.jar");
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			SyntheticPlugins.unloadAll(host);
+		}
+	}
+	
+	// Gives plugin0.jar a new modification time before every invocation, so the scan reloads that jar only.
+	// With a pack the pack itself is touched: its index is read again, no plugin changed.
+	public static class Touched extends Loaded {
+		@Setup(Level.Invocation)
+		public void touch() {
+			jar.setLastModified(jar.lastModified() + 1000);
+		}
+	}
+	
+	@Benchmark
+	public Object coldScan(Cold state) {
+		SyntheticPlugins.scan(state.host);
+		return state.host.GetAvailablePlugins();
+	}
+	
+	@Benchmark
+	public Object idleScan(Loaded state) {
+		SyntheticPlugins.scan(state.host);
+		return state.host.GetAvailablePlugins();
+	}
+	
+	@Benchmark
+	public Object singleJarReload(Touched state) {
+		SyntheticPlugins.scan(state.host);
+		return state.host.GetAvailablePlugins();
+	}
+}
@@ -0,0 +1,132 @@
+package com.ab.abplugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import anywheresoftware.b4a.BA;
+
+// Builds directories of plugin jars that follow the conventions of B4J compiled plugins:
+// plugin<i>.jar holds class bench.plugin<i> with _initialize, _getnicename ("Plugin<i>"), _run and _runargs.
+final class SyntheticPlugins {
+	static final String KEY = "bench";
+	
+	private SyntheticPlugins() {
+	}
+	
+	static File createDirectory(int count) throws IOException {
+		File root = Files.createTempDirectory("abplugin-bench").toFile();
+		File sources = new File(root, "src/bench");
+		File classes = new File(root, "classes");
+		File plugins = new File(root, "plugins");
+		sources.mkdirs();
+		classes.mkdirs();
+		plugins.mkdirs();
+		
+		List<String> args = new ArrayList<String>();
+		args.add("-classpath");
+		args.add(System.getProperty("java.class.path"));
+		args.add("-d");
+		args.add(classes.getAbsolutePath());
+		for (int i=0; i<count; i++) {
+			File source = new File(sources, "plugin" + i + ".java");
+			try (Writer w = new OutputStreamWriter(new FileOutputStream(source), StandardCharsets.UTF_8)) {
+				w.write("package bench;\n"
+						+ "public class plugin" + i + " {\n"
+						+ "	public String _initialize(anywheresoftware.b4a.BA ba) { return \"" + KEY + "\"; }\n"
+						+ "	public String _getnicename() { return \"Plugin" + i + "\"; }\n"
+						+ "	public Object _run(String tag, anywheresoftware.b4a.objects.collections.Map params) { return tag; }\n"
+						+ "	public Object _runargs(String tag, Object[] args) { return tag; }\n"
+						+ "}\n");
+			}
+			args.add(source.getAbsolutePath());
+		}
+		
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new IllegalStateException("The benchmarks need a JDK to compile the synthetic plugins");
+		}
+		if (compiler.run(null, null, null, args.toArray(new String[0])) != 0) {
+			throw new IllegalStateException("Failed to compile the synthetic plugins");
+		}
+		
+		for (int i=0; i<count; i++) {
+			String name = "plugin" + i;
+			try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(new File(plugins, name + ".jar")))) {
+				jar.putNextEntry(new JarEntry("bench/" + name + ".class"));
+				jar.write(Files.readAllBytes(new File(classes, "bench/" + name + ".class").toPath()));
+				jar.closeEntry();
+			}
+		}
+		return root;
+	}
+	
+	// Replaces the jars in the plugins directory by a single plugin pack holding all of them
+	static File pack(File root) {
+		File jars = new File(root, "jars");
+		if (!pluginsDir(root).renameTo(jars) || !pluginsDir(root).mkdirs()) {
+			throw new IllegalStateException("Failed to move the synthetic plugin jars");
+		}
+		File pack = new File(pluginsDir(root), "plugins.abpack");
+		if (new ABPlugin().CreatePluginPack(jars.getAbsolutePath(), pack.getAbsolutePath()) < 0) {
+			throw new IllegalStateException("Failed to pack the synthetic plugins");
+		}
+		return pack;
+	}
+	
+	static File pluginsDir(File root) {
+		return new File(root, "plugins");
+	}
+	
+	static ABPlugin newHost(File root) {
+		ABPlugin host = new ABPlugin();
+		host.Initialize(new BA(), "bench", pluginsDir(root).getAbsolutePath(), KEY);
+		return host;
+	}
+	
+	// Runs one loader cycle on the calling thread
+	static void scan(ABPlugin host) {
+		host.mIsRunning = true;
+		host.runnable.run();
+	}
+	
+	// Closes the class loaders of all loaded plugins, so hosts created per invocation do not keep
+	// thousands of jar files open until they are garbage collected
+	static void unloadAll(ABPlugin host) {
+		host.Stop();
+		try {
+			Field field = ABPlugin.class.getDeclaredField("registry");
+			field.setAccessible(true);
+			PluginRegistry registry = (PluginRegistry) field.get(host);
+			for (ABPluginDefinition def : registry.plugins.values()) {
+				if (def.classLoader != null) {
+					def.classLoader.close();
+				}
+			}
+		} catch (ReflectiveOperationException | IOException e) {
+			throw new IllegalStateException("Failed to unload plugins", e);
+		}
+	}
+	
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,88 @@
+package com.ab.abplugin;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Replacing a plugin jar must load the new version on every reload, not a cached copy of an older one.
+// Java 8 is the runtime that caches jar: URLs this way, run with JAVA_HOME pointing at a Java 8 JDK to cover it.
+public class PluginReloadTest {
+	private File root;
+	private ABPlugin host;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("abplugin-reload").toFile();
+		SyntheticPlugins.pluginsDir(root).mkdirs();
+		host = SyntheticPlugins.newHost(root);
+	}
+
+	@After
+	public void tearDown() {
+		SyntheticPlugins.unloadAll(host);
+		SyntheticPlugins.delete(root);
+	}
+
+	@Test
+	public void replacedJarLoadsEachVersion() throws IOException {
+		StringBuilder results = new StringBuilder();
+		for (int version=1; version<=3; version++) {
+			writePlugin(version);
+			SyntheticPlugins.scan(host);
+			results.append(host.RunPlugin("Reload", "t", null)).append(' ');
+		}
+		assertEquals("v1 v2 v3", results.toString().trim());
+	}
+
+	// Compiles the given version of reload.plugin and replaces plugins/reload.jar with it
+	private void writePlugin(int version) throws IOException {
+		File build = new File(root, "v" + version);
+		File source = new File(build, "src/reload/plugin.java");
+		File classes = new File(build, "classes");
+		source.getParentFile().mkdirs();
+		classes.mkdirs();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(source), StandardCharsets.UTF_8)) {
+			w.write("package reload;\n"
+					+ "public class plugin {\n"
+					+ "	public String _initialize(anywheresoftware.b4a.BA ba) { return \"" + SyntheticPlugins.KEY + "\"; }\n"
+					+ "	public String _getnicename() { return \"Reload\"; }\n"
+					+ "	public Object _run(String tag, anywheresoftware.b4a.objects.collections.Map params) { return \"v" + version + "\"; }\n"
+					+ "}\n");
+		}
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new IllegalStateException("The reload check needs a JDK to compile its plugin");
+		}
+		if (compiler.run(null, null, null, "-classpath", System.getProperty("java.class.path"), "-d", classes.getAbsolutePath(), source.getAbsolutePath()) != 0) {
+			throw new IllegalStateException("Failed to compile the reload plugin");
+		}
+
+		// Written next to the plugins directory and renamed over the old jar, the way a deployment replaces it
+		File written = new File(build, "reload.jar");
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(written))) {
+			out.putNextEntry(new JarEntry("reload/plugin.class"));
+			out.write(Files.readAllBytes(new File(classes, "reload/plugin.class").toPath()));
+			out.closeEntry();
+		}
+		File jar = new File(SyntheticPlugins.pluginsDir(root), "reload.jar");
+		Files.move(written.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// The loader detects changes by modification time, which can be too coarse to tell quick rewrites apart
+		jar.setLastModified(version * 1000L);
+	}
+}